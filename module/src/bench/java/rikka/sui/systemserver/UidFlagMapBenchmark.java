@@ -0,0 +1,177 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.systemserver;
+
+import android.util.SparseIntArray;
+import java.util.Arrays;
+import java.util.Random;
+import rikka.sui.server.SuiConfig;
+
+/**
+ * Compares UidFlagMap with the four sorted uid arrays SystemProcess searched before it.
+ *
+ * <p>For 50, 500 and 5000 configured uids spread over four users, looks up a fixed, seeded mix of
+ * configured and unconfigured uids and prints the best time per lookup of several rounds. Build
+ * with {@code ./gradlew :module:assembleDebug -Psui.benchmarks}, install the module and run as
+ * root: {@code app_process -cp /data/adb/modules/zygisk-sui/sui.dex /system/bin
+ * rikka.sui.systemserver.UidFlagMapBenchmark [rounds]}.
+ */
+public final class UidFlagMapBenchmark {
+
+    private static final int[] UID_COUNTS = {50, 500, 5000};
+    private static final int[] USER_IDS = {0, 10, 11, 999};
+    private static final int[] PERMISSION_FLAGS = {
+        SuiConfig.FLAG_ALLOWED, SuiConfig.FLAG_ALLOWED_SHELL, SuiConfig.FLAG_DENIED, SuiConfig.FLAG_HIDDEN
+    };
+    private static final int DEFAULT_FLAGS = SuiConfig.FLAG_HIDDEN;
+    private static final int LOOKUPS = 1 << 16;
+    private static final int ITERATIONS = 1 << 22;
+    private static final long SEED = 0x5A1L;
+
+    // Keeps the lookups from being optimized away.
+    private static volatile int sink;
+
+    /**
+     * The sorted arrays and the search order of getPermissionFlags before UidFlagMap.
+     */
+    private static final class SortedArrays {
+
+        final int[] hidden;
+        final int[] denied;
+        final int[] root;
+        final int[] shell;
+
+        SortedArrays(SparseIntArray policy) {
+            hidden = collect(policy, SuiConfig.FLAG_HIDDEN);
+            denied = collect(policy, SuiConfig.FLAG_DENIED);
+            root = collect(policy, SuiConfig.FLAG_ALLOWED);
+            shell = collect(policy, SuiConfig.FLAG_ALLOWED_SHELL);
+        }
+
+        private static int[] collect(SparseIntArray policy, int flag) {
+            int[] uids = new int[policy.size()];
+            int count = 0;
+            for (int i = 0; i < policy.size(); i++) {
+                if ((policy.valueAt(i) & flag) != 0) {
+                    uids[count++] = policy.keyAt(i);
+                }
+            }
+            uids = Arrays.copyOf(uids, count);
+            Arrays.sort(uids);
+            return uids;
+        }
+
+        int getPermissionFlags(int uid) {
+            if (Arrays.binarySearch(hidden, uid) >= 0) {
+                return SuiConfig.FLAG_HIDDEN;
+            } else if (Arrays.binarySearch(denied, uid) >= 0) {
+                return SuiConfig.FLAG_DENIED;
+            } else if (Arrays.binarySearch(root, uid) >= 0) {
+                return SuiConfig.FLAG_ALLOWED;
+            } else if (Arrays.binarySearch(shell, uid) >= 0) {
+                return SuiConfig.FLAG_ALLOWED_SHELL;
+            }
+            return DEFAULT_FLAGS;
+        }
+    }
+
+    private UidFlagMapBenchmark() {}
+
+    /**
+     * Same as SystemProcess.getPermissionFlags, on a given map.
+     */
+    private static int getPermissionFlags(UidFlagMap map, int uid) {
+        int flags = map.get(uid);
+        if ((flags & SuiConfig.FLAG_HIDDEN) != 0) {
+            return SuiConfig.FLAG_HIDDEN;
+        } else if ((flags & SuiConfig.FLAG_DENIED) != 0) {
+            return SuiConfig.FLAG_DENIED;
+        } else if ((flags & SuiConfig.FLAG_ALLOWED) != 0) {
+            return SuiConfig.FLAG_ALLOWED;
+        } else if ((flags & SuiConfig.FLAG_ALLOWED_SHELL) != 0) {
+            return SuiConfig.FLAG_ALLOWED_SHELL;
+        }
+        return map.getDefaultFlags();
+    }
+
+    private static int randomUid(Random random) {
+        return USER_IDS[random.nextInt(USER_IDS.length)] * 100000 + 10000 + random.nextInt(10000);
+    }
+
+    private static double timeSorted(SortedArrays arrays, int[] lookups) {
+        int mask = lookups.length - 1;
+        int result = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            result += arrays.getPermissionFlags(lookups[i & mask]);
+        }
+        long elapsed = System.nanoTime() - start;
+        sink = result;
+        return (double) elapsed / ITERATIONS;
+    }
+
+    private static double timeMap(UidFlagMap map, int[] lookups) {
+        int mask = lookups.length - 1;
+        int result = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            result += getPermissionFlags(map, lookups[i & mask]);
+        }
+        long elapsed = System.nanoTime() - start;
+        sink = result;
+        return (double) elapsed / ITERATIONS;
+    }
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+        System.out.printf("%d lookups per round, best of %d rounds, ns per lookup%n", ITERATIONS, rounds);
+        System.out.printf("%8s %14s %14s%n", "uids", "sorted arrays", "UidFlagMap");
+        for (int count : UID_COUNTS) {
+            Random random = new Random(SEED + count);
+            SparseIntArray policy = new SparseIntArray();
+            while (policy.size() < count) {
+                policy.put(randomUid(random), PERMISSION_FLAGS[random.nextInt(PERMISSION_FLAGS.length)]);
+            }
+
+            // Half configured uids, half uids of the same users that fall back to the default.
+            int[] lookups = new int[LOOKUPS];
+            for (int i = 0; i < LOOKUPS; i++) {
+                lookups[i] = (i & 1) == 0 ? policy.keyAt(random.nextInt(count)) : randomUid(random);
+            }
+
+            SortedArrays arrays = new SortedArrays(policy);
+            UidFlagMap map = UidFlagMap.build(policy, DEFAULT_FLAGS);
+            for (int uid : lookups) {
+                if (arrays.getPermissionFlags(uid) != getPermissionFlags(map, uid)) {
+                    throw new IllegalStateException("flags of uid " + uid + " differ");
+                }
+            }
+
+            double sorted = Double.MAX_VALUE;
+            double hashed = Double.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) {
+                sorted = Math.min(sorted, timeSorted(arrays, lookups));
+                hashed = Math.min(hashed, timeMap(map, lookups));
+            }
+            System.out.printf("%8d %14.1f %14.1f%n", count, sorted, hashed);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+/*
+ * Compares UidTable with the shared_mutex + unordered_set it replaced in system_server.
+ *
+ * Reader threads look up random uids for a fixed time, optionally while a writer publishes a
+ * new table every millisecond, with 1, 2, 4... up to the given number of readers. Contention
+ * between readers only shows with at least as many cores as readers. Build with
+ * -DSUI_BENCHMARKS=ON, push the binary and run it in adb shell:
+ * uid_table_bench [max readers] [seconds].
+ */
+
+#include <atomic>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <random>
+#include <shared_mutex>
+#include <thread>
+#include <unordered_set>
+#include <vector>
+
+#include "core/uid_table.h"
+
+namespace {
+
+constexpr size_t kUidCount = 300;
+constexpr uid_t kFirstAppUid = 10000;
+
+// Keeps the lookups from being optimized away.
+std::atomic<uint32_t> g_sink;
+
+struct LockedSet {
+    std::unordered_set<uid_t> uids;
+    mutable std::shared_mutex mutex;
+
+    uint32_t getPermissionFlags(uid_t uid) const {
+        std::shared_lock lock(mutex);
+        return uids.find(uid) != uids.end() ? UidPolicy::FLAG_HIDDEN : 0;
+    }
+
+    void publish(const uid_t* list, const uint32_t*, size_t count, uint32_t) {
+        std::unique_lock lock(mutex);
+        uids.clear();
+        uids.insert(list, list + count);
+    }
+};
+
+template <typename Map>
+double Run(Map& map, int readers, int seconds, bool with_writer) {
+    std::vector<uid_t> uids(kUidCount);
+    std::vector<uint32_t> flags(kUidCount, UidPolicy::FLAG_HIDDEN);
+    for (size_t i = 0; i < kUidCount; ++i) {
+        uids[i] = kFirstAppUid + i * 3;
+    }
+    map.publish(uids.data(), flags.data(), kUidCount, 0);
+    for (size_t i = 0; i < kUidCount; ++i) {
+        if (map.getPermissionFlags(uids[i]) != UidPolicy::FLAG_HIDDEN ||
+            map.getPermissionFlags(uids[i] + 1) != 0) {
+            fprintf(stderr, "wrong flags for uid %u\n", uids[i]);
+            exit(1);
+        }
+    }
+
+    std::atomic<bool> stop{false};
+    std::atomic<uint64_t> lookups{0};
+    std::vector<std::thread> threads;
+    for (int i = 0; i < readers; ++i) {
+        threads.emplace_back([&, i] {
+            std::minstd_rand random(i);
+            uint64_t count = 0;
+            uint32_t sink = 0;
+            while (!stop.load(std::memory_order_relaxed)) {
+                for (int j = 0; j < 1024; ++j) {
+                    sink += map.getPermissionFlags(kFirstAppUid + random() % (kUidCount * 3));
+                }
+                count += 1024;
+            }
+            g_sink.store(sink, std::memory_order_relaxed);
+            lookups += count;
+        });
+    }
+    if (with_writer) {
+        threads.emplace_back([&] {
+            while (!stop.load(std::memory_order_relaxed)) {
+                map.publish(uids.data(), flags.data(), kUidCount, 0);
+                std::this_thread::sleep_for(std::chrono::milliseconds(1));
+            }
+        });
+    }
+
+    std::this_thread::sleep_for(std::chrono::seconds(seconds));
+    stop = true;
+    for (auto& thread : threads) {
+        thread.join();
+    }
+    return seconds * 1e9 * readers / lookups.load();
+}
+
+template <typename Map>
+void Report(const char* name, int readers, int seconds) {
+    Map idle, busy;
+    double idle_ns = Run(idle, readers, seconds, false);
+    double busy_ns = Run(busy, readers, seconds, true);
+    printf("%-12s %8.1f ns/lookup %8.1f ns/lookup with writer\n", name, idle_ns, busy_ns);
+}
+
+}  // namespace
+
+int main(int argc, char** argv) {
+    int max_readers = argc > 1 ? atoi(argv[1]) : 8;
+    int seconds = argc > 2 ? atoi(argv[2]) : 2;
+    if (max_readers <= 0 || seconds <= 0) {
+        fprintf(stderr, "usage: %s [max readers] [seconds]\n", argv[0]);
+        return 1;
+    }
+
+    printf("%u cpus, %zu uids, %d s per run\n", std::thread::hardware_concurrency(), kUidCount,
+           seconds);
+    for (int readers = 1; readers <= max_readers; readers *= 2) {
+        printf("%d readers\n", readers);
+        Report<UidTable>("UidTable", readers, seconds);
+        Report<LockedSet>("shared_mutex", readers, seconds);
+    }
+    return 0;
+}
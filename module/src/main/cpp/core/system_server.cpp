@@ -36,8 +36,6 @@
 #include <cinttypes>
 #include <string>
 #include <vector>
-#include <unordered_set>
-#include <shared_mutex>
 
 #include "android.h"
 #include "logging.h"
@@ -46,6 +44,7 @@
 #include "bridge_service.h"
 #include "binder_hook.h"
 #include "config.h"
+#include "uid_table.h"
 
 typedef uid_t (*AIBinder_getCallingUid_t)();
 typedef pid_t (*AIBinder_getCallingPid_t)();
@@ -60,28 +59,38 @@ static jmethodID getCallingUidMethodID = nullptr;
 
 static jint startShortcutTransactionCode = -1;
 
-static std::unordered_set<uid_t> hiddenUids;
-static std::shared_mutex hiddenUidsMutex;
+static UidTable uidPolicy;
 
-static void setHiddenUids(JNIEnv* env, jclass, jintArray uids) {
-    std::unique_lock lock(hiddenUidsMutex);
-    if (!uids) {
-        hiddenUids.clear();
+static void setUidPolicy(JNIEnv* env, jclass, jintArray uids, jintArray flags, jint defaultFlags) {
+    if (!uids || !flags) {
+        uidPolicy.publish(nullptr, nullptr, 0, (uint32_t)defaultFlags);
         return;
     }
 
     jsize len = env->GetArrayLength(uids);
-    jint* body = env->GetIntArrayElements(uids, nullptr);
-    if (body == nullptr) {
+    if (env->GetArrayLength(flags) != len) {
+        LOGE("setUidPolicy: uids and flags have different length");
         return;
     }
 
-    hiddenUids.clear();
-    for (jsize i = 0; i < len; i++) {
-        hiddenUids.insert((uid_t)body[i]);
+    jint* uidsBody = env->GetIntArrayElements(uids, nullptr);
+    if (uidsBody == nullptr) {
+        return;
+    }
+    jint* flagsBody = env->GetIntArrayElements(flags, nullptr);
+    if (flagsBody == nullptr) {
+        env->ReleaseIntArrayElements(uids, uidsBody, JNI_ABORT);
+        return;
     }
-    env->ReleaseIntArrayElements(uids, body, JNI_ABORT);
-    LOGD("updated %zu hidden uids", hiddenUids.size());
+
+    static_assert(sizeof(jint) == sizeof(uid_t));
+    static_assert(sizeof(jint) == sizeof(uint32_t));
+    uidPolicy.publish(reinterpret_cast<const uid_t*>(uidsBody),
+                      reinterpret_cast<const uint32_t*>(flagsBody), (size_t)len,
+                      (uint32_t)defaultFlags);
+    env->ReleaseIntArrayElements(flags, flagsBody, JNI_ABORT);
+    env->ReleaseIntArrayElements(uids, uidsBody, JNI_ABORT);
+    LOGD("updated policy of %zu uids, default flags %d", uidPolicy.size(), defaultFlags);
 }
 
 static bool installDex(JNIEnv* env, Dex* dexFile) {
@@ -94,7 +103,7 @@ static bool installDex(JNIEnv* env, Dex* dexFile) {
     jobjectArray args = nullptr;
     jmethodID mainMethod = nullptr;
     JNINativeMethod methods[] = {
-        {"setHiddenUids", "([I)V", (void*)setHiddenUids},
+        {"setUidPolicy", "([I[II)V", (void*)setUidPolicy},
     };
 
     if (android_get_device_api_level() < 27) {
@@ -128,7 +137,7 @@ static bool installDex(JNIEnv* env, Dex* dexFile) {
     }
 
     my_execTransactMethodID =
-        env->GetStaticMethodID(loadedMainClass, "execTransact", "(Landroid/os/Binder;IJJI)Z");
+        env->GetStaticMethodID(loadedMainClass, "execTransact", "(Landroid/os/Binder;IJJII)Z");
     if (!my_execTransactMethodID) {
         LOGE("unable to find execTransact");
         env->ExceptionDescribe();
@@ -236,6 +245,14 @@ static bool ExecTransact(jboolean* res, JNIEnv* env, jobject obj, va_list args)
             uid = (uid_t)env->CallStaticIntMethod(javaBinderClass, getCallingUidMethodID);
         }
 
+        // -1 tells Java that the caller could not be resolved here and it has to look up
+        // the permission flags by itself.
+        jint permissionFlags = -1;
+
+        if (uid != (uid_t)-1) {
+            permissionFlags = (jint)uidPolicy.getPermissionFlags(uid);
+        }
+
         if (uid != (uid_t)-1 && uid >= 10000) {
             uid_t app_id = uid % 100000;
 
@@ -243,14 +260,13 @@ static bool ExecTransact(jboolean* res, JNIEnv* env, jobject obj, va_list args)
                 return false;
             }
 
-            std::shared_lock lock(hiddenUidsMutex);
-            if (hiddenUids.find(uid) != hiddenUids.end()) {
+            if (permissionFlags & UidPolicy::FLAG_HIDDEN) {
                 return false;
             }
         }
 
         *res = env->CallStaticBooleanMethod(mainClass, my_execTransactMethodID, obj, code, dataObj,
-                                            replyObj, flags);
+                                            replyObj, flags, permissionFlags);
         return true;
     } /* else if (startShortcutTransactionCode != -1 && code == startShortcutTransactionCode) {
          *res = env->CallStaticBooleanMethod(mainClass, my_execTransactMethodID, obj, code, dataObj,
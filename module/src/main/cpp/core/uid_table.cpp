@@ -0,0 +1,198 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+#include <cstdlib>
+#include <pthread.h>
+#include <sched.h>
+
+#include "logging.h"
+#include "uid_table.h"
+
+using namespace UidPolicy;
+
+static uint32_t ResolvePermissionFlags(uint32_t flags) {
+    if (flags & FLAG_HIDDEN) {
+        return FLAG_HIDDEN;
+    } else if (flags & FLAG_DENIED) {
+        return FLAG_DENIED;
+    } else if (flags & FLAG_ALLOWED) {
+        return FLAG_ALLOWED;
+    } else if (flags & FLAG_ALLOWED_SHELL) {
+        return FLAG_ALLOWED_SHELL;
+    }
+    return 0;
+}
+
+static size_t HashUid(uid_t uid) {
+    // uids of different users only differ in multiples of 100000, spread them over the table.
+    uint32_t h = uid * 0x9E3779B9u;
+    return h ^ (h >> 16);
+}
+
+namespace {
+
+/*
+ * One per reading thread, shared by all tables. seq is odd while the thread reads a table and
+ * only that thread writes it, so lookups on different threads touch no common cache line.
+ * Slots are never freed, those of exited threads are reused.
+ */
+struct alignas(64) ReaderSlot {
+    std::atomic<uint32_t> seq{0};
+    std::atomic<bool> in_use{true};
+    ReaderSlot* next = nullptr;
+};
+
+std::atomic<ReaderSlot*> g_slots{nullptr};
+pthread_key_t g_slot_key;
+pthread_once_t g_slot_key_once = PTHREAD_ONCE_INIT;
+thread_local ReaderSlot* t_slot = nullptr;
+
+void ReleaseSlot(void* slot) {
+    static_cast<ReaderSlot*>(slot)->in_use.store(false, std::memory_order_release);
+}
+
+ReaderSlot* AcquireSlot() {
+    ReaderSlot* slot = nullptr;
+    for (auto s = g_slots.load(std::memory_order_acquire); s != nullptr; s = s->next) {
+        bool in_use = false;
+        if (s->in_use.compare_exchange_strong(in_use, true, std::memory_order_acquire)) {
+            slot = s;
+            break;
+        }
+    }
+    if (slot == nullptr) {
+        slot = new ReaderSlot();
+        slot->next = g_slots.load(std::memory_order_relaxed);
+        // seq_cst, a writer that misses this slot has published its table before the first read.
+        while (!g_slots.compare_exchange_weak(slot->next, slot, std::memory_order_seq_cst)) {
+        }
+    }
+
+    pthread_once(&g_slot_key_once, [] { pthread_key_create(&g_slot_key, ReleaseSlot); });
+    pthread_setspecific(g_slot_key, slot);
+    return slot;
+}
+
+class ReadGuard {
+   public:
+    ReadGuard() : slot_(t_slot != nullptr ? t_slot : (t_slot = AcquireSlot())) {
+        seq_ = slot_->seq.load(std::memory_order_relaxed) + 1;
+        // Ordered before the load of the table, pairs with the exchange in publish.
+        slot_->seq.store(seq_, std::memory_order_seq_cst);
+    }
+
+    ~ReadGuard() { slot_->seq.store(seq_ + 1, std::memory_order_release); }
+
+   private:
+    ReaderSlot* slot_;
+    uint32_t seq_;
+};
+
+}  // namespace
+
+uint32_t UidTable::getPermissionFlags(uid_t uid) const {
+    ReadGuard guard;
+
+    uint32_t flags = 0;
+    auto table = table_.load(std::memory_order_seq_cst);
+    if (table != nullptr) {
+        flags = table->default_flags;
+        for (size_t i = HashUid(uid) & table->mask;; i = (i + 1) & table->mask) {
+            const Entry& entry = table->entries[i];
+            if (entry.flags == 0) {
+                break;
+            }
+            if (entry.uid == uid) {
+                flags = entry.flags;
+                break;
+            }
+        }
+    }
+    return flags;
+}
+
+size_t UidTable::size() const {
+    ReadGuard guard;
+    auto table = table_.load(std::memory_order_seq_cst);
+    return table != nullptr ? table->size : 0;
+}
+
+/*
+ * A reader that may still hold the old table made its seq odd before the new table was
+ * published, so the writer waits for each seq that is odd now to move on. Reads that start
+ * later see the new table, so the wait ends even under continuous load.
+ */
+void UidTable::synchronize() {
+    for (auto slot = g_slots.load(std::memory_order_seq_cst); slot != nullptr; slot = slot->next) {
+        uint32_t seq = slot->seq.load(std::memory_order_seq_cst);
+        if ((seq & 1) == 0) {
+            continue;
+        }
+        while (slot->seq.load(std::memory_order_acquire) == seq) {
+            sched_yield();
+        }
+    }
+}
+
+void UidTable::publish(const uid_t* uids, const uint32_t* flags, size_t count,
+                       uint32_t default_flags) {
+    // Keep the load factor at most 1/2 so most lookups finish on the first slot.
+    size_t capacity = 1;
+    while (capacity < count * 2) {
+        capacity <<= 1;
+    }
+    auto table = (Table*)calloc(1, sizeof(Table) + capacity * sizeof(Entry));
+    if (table == nullptr) {
+        LOGE("unable to allocate uid table of %zu entries", capacity);
+        return;
+    }
+    table->mask = capacity - 1;
+
+    // Merge duplicated uids. Entries that have no permission flag are not stored, those fall
+    // back to the default flags anyway.
+    for (size_t i = 0; i < count; ++i) {
+        uint32_t value = flags[i] & MASK_PERMISSION;
+        if (value == 0) {
+            continue;
+        }
+        size_t index = HashUid(uids[i]) & table->mask;
+        while (table->entries[index].flags != 0 && table->entries[index].uid != uids[i]) {
+            index = (index + 1) & table->mask;
+        }
+        Entry& entry = table->entries[index];
+        if (entry.flags == 0) {
+            entry.uid = uids[i];
+            ++table->size;
+        }
+        entry.flags |= value;
+    }
+    for (size_t i = 0; i < capacity; ++i) {
+        if (table->entries[i].flags != 0) {
+            table->entries[i].flags = ResolvePermissionFlags(table->entries[i].flags);
+        }
+    }
+    table->default_flags = ResolvePermissionFlags(default_flags & MASK_PERMISSION);
+
+    std::lock_guard lock(writer_mutex_);
+    auto old = table_.exchange(table, std::memory_order_seq_cst);
+    if (old != nullptr) {
+        synchronize();
+        free(old);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+#pragma once
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <mutex>
+#include <sys/types.h>
+
+// Keep in sync with rikka.sui.server.SuiConfig
+namespace UidPolicy {
+constexpr uint32_t FLAG_ALLOWED = 1 << 1;
+constexpr uint32_t FLAG_DENIED = 1 << 2;
+constexpr uint32_t FLAG_HIDDEN = 1 << 3;
+constexpr uint32_t FLAG_ALLOWED_SHELL = 1 << 4;
+constexpr uint32_t MASK_PERMISSION = FLAG_ALLOWED | FLAG_DENIED | FLAG_HIDDEN | FLAG_ALLOWED_SHELL;
+}  // namespace UidPolicy
+
+/*
+ * Immutable open-addressing uid -> permission flags table published through an atomic pointer.
+ *
+ * Readers (binder threads in system_server) never take a lock and never allocate after their
+ * first lookup: each thread marks itself as reading in a slot of its own, loads the current
+ * table and probes it. Writers build a new table, swap it in, then wait for the threads that
+ * were reading at that moment before freeing the old table.
+ */
+class UidTable {
+   public:
+    constexpr UidTable() = default;
+
+    UidTable(const UidTable&) = delete;
+
+    UidTable& operator=(const UidTable&) = delete;
+
+    /*
+     * Returns the effective permission flag of uid, resolved the same way as
+     * rikka.sui.systemserver.Bridge.getPermissionFlags (hidden > denied > root > shell,
+     * otherwise the default flags).
+     */
+    uint32_t getPermissionFlags(uid_t uid) const;
+
+    size_t size() const;
+
+    void publish(const uid_t* uids, const uint32_t* flags, size_t count, uint32_t default_flags);
+
+   private:
+    struct Entry {
+        uid_t uid;
+        uint32_t flags;
+    };
+
+    // Only entries with a permission flag are stored, so zero flags mark an empty slot.
+    struct Table {
+        uint32_t default_flags;
+        size_t size;
+        size_t mask;
+        Entry entries[];
+    };
+
+    std::atomic<Table*> table_{nullptr};
+    std::mutex writer_mutex_;
+
+    static void synchronize();
+};
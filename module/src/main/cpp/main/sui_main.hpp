@@ -27,14 +27,36 @@
 #include <sys/stat.h>
 #include <fcntl.h>
 #include <selinux.h>
+#include <startup_trace.h>
 #include <string>
 #include <dirent.h>
+#include <poll.h>
+#include <csignal>
+#include <ctime>
+#include <algorithm>
+#include <functional>
+#include <vector>
+#include <sys/signalfd.h>
+#include <sys/syscall.h>
+#include <sys/wait.h>
 
 static constexpr const char* SUI_DATA_DIR = "/data/adb/sui";
 static constexpr const char* LEGACY_SHELL_DIR = "/data/local/tmp/sui_shell";
 static constexpr const char* SHELL_BASE_DIR = "/data/local/tmp";
 static constexpr const char* SHELL_DIR_PREFIX = "sui_shell_";
 static constexpr const char* SHELL_DIR_MARKER = "/data/adb/sui/shell_dir_name";
+// Written by compile_dex.sh, compiled for the location of sui.dex in the shell directory.
+static constexpr const char* SHELL_OAT_DIR = "/data/adb/sui/oat/shell";
+
+#if defined(__aarch64__)
+static constexpr const char* ISA = "arm64";
+#elif defined(__arm__)
+static constexpr const char* ISA = "arm";
+#elif defined(__x86_64__)
+static constexpr const char* ISA = "x86_64";
+#elif defined(__i386__)
+static constexpr const char* ISA = "x86";
+#endif
 
 static std::string trim_copy(const std::string& input) {
     size_t begin = 0;
@@ -231,6 +253,312 @@ static bool build_module_path(char* buffer, size_t buffer_size, const char* root
     return true;
 }
 
+/*
+ * Makes name in dir_fd a shell readable copy of src_path. Unchanged files are not written again,
+ * which keeps the page cache of the copy and lets running shell processes keep using it.
+ */
+static void install_shell_file(const char* src_path, int dir_fd, const char* name) {
+    bool copied;
+    if (update_file_at(src_path, dir_fd, name, 0644, 2000, 2000, &copied) != 0) {
+        LOGW("update %s failed with %d: %s", name, errno, strerror(errno));
+        return;
+    }
+    LOGI("%s %s", name, copied ? "updated" : "unchanged");
+}
+
+/*
+ * Opens the shell directory as a directory of shell. Everything below it is writable by shell, so
+ * it is only accessed relative to the returned fd, never by path.
+ */
+static int open_shell_dir(const char* shell_dir) {
+    const char* slash = strrchr(shell_dir, '/');
+    if (slash == nullptr || slash == shell_dir) {
+        errno = EINVAL;
+        return -1;
+    }
+    std::string parent(shell_dir, slash - shell_dir);
+    int parent_fd = open(parent.c_str(), O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+    if (parent_fd == -1) {
+        return -1;
+    }
+    int fd = open_owned_dir_at(parent_fd, slash + 1, 0755, 2000, 2000);
+    int err = errno;
+    close(parent_fd);
+    errno = err;
+    return fd;
+}
+
+/*
+ * Opens the directory name in parent_fd without following a symlink in its place. With create it
+ * is made a directory owned by shell if needed.
+ */
+static int open_shell_subdir(int parent_fd, const char* name, bool create) {
+    if (create) {
+        return open_owned_dir_at(parent_fd, name, 0755, 2000, 2000);
+    }
+    return openat(parent_fd, name, O_RDONLY | O_DIRECTORY | O_NOFOLLOW | O_CLOEXEC);
+}
+
+/*
+ * Puts the code compiled for the shell copy of sui.dex into <shell_dir>/oat/<isa>, where ART looks
+ * for it. Without compiled code, stale files are removed.
+ */
+static void install_shell_oat(int shell_fd) {
+    char src_path[PATH_MAX];
+    snprintf(src_path, PATH_MAX, "%s/%s/sui.odex", SHELL_OAT_DIR, ISA);
+    bool compiled = access(src_path, F_OK) == 0;
+
+    int oat_fd = open_shell_subdir(shell_fd, "oat", compiled);
+    if (oat_fd == -1) {
+        if (compiled) PLOGE("open oat");
+        return;
+    }
+    int isa_fd = open_shell_subdir(oat_fd, ISA, compiled);
+    close(oat_fd);
+    if (isa_fd == -1) {
+        if (compiled) PLOGE("open oat/%s", ISA);
+        return;
+    }
+
+    for (auto name : {"sui.vdex", "sui.odex"}) {
+        snprintf(src_path, PATH_MAX, "%s/%s/%s", SHELL_OAT_DIR, ISA, name);
+        if (access(src_path, F_OK) != 0) {
+            unlinkat(isa_fd, name, 0);
+            continue;
+        }
+        install_shell_file(src_path, isa_fd, name);
+    }
+    close(isa_fd);
+}
+
+/*
+ * A server that ran at least STABLE_RUN_MS is restarted at once when it exits, one that keeps
+ * exiting sooner is restarted after a backoff doubling from the minimum up to the maximum.
+ */
+static constexpr long long STABLE_RUN_MS = 60 * 1000;
+static constexpr long long RESTART_BACKOFF_MIN_MS = 250;
+static constexpr long long RESTART_BACKOFF_MAX_MS = 60 * 1000;
+
+#ifndef __NR_pidfd_open
+#define __NR_pidfd_open 434
+#endif
+
+struct server {
+    const char* name;
+    std::function<pid_t()> spawn;
+    pid_t pid = -1;
+    // Readable once the server exited, -1 before Linux 5.3 where SIGCHLD is used instead.
+    int pidfd = -1;
+    long long started_at = 0;
+    long long restart_at = 0;
+    long long backoff = 0;
+};
+
+static long long monotonic_ms() {
+    timespec ts{};
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000LL + ts.tv_nsec / 1000000;
+}
+
+/*
+ * Undoes the signal mask of the supervisor in a forked server, the mask survives execve.
+ */
+static void reset_child_signals() {
+    sigset_t mask;
+    sigemptyset(&mask);
+    sigprocmask(SIG_SETMASK, &mask, nullptr);
+}
+
+static pid_t spawn_root_server(const char* dex_path, const char* root_path) {
+    pid_t pid = fork();
+    if (pid != 0) {
+        return pid;
+    }
+
+    reset_child_signals();
+    startup_trace_begin("spawn");
+    startup_trace_export();
+    app_process(dex_path, root_path, "rikka.sui.server.Starter", "sui");
+    exit(EXIT_FAILURE);
+}
+
+static pid_t spawn_shell_server(const char* dex_path, const char* root_path,
+                                const char* shell_dir) {
+    pid_t pid = fork();
+    if (pid != 0) {
+        return pid;
+    }
+
+    reset_child_signals();
+    startup_trace_begin("spawn");
+
+    // uid 2000 cannot read /data/adb/modules/zygisk-sui/sui.dex or .so libraries
+    startup_trace_begin("install_shell_files");
+    int shell_fd = open_shell_dir(shell_dir);
+    if (shell_fd == -1) {
+        PLOGE("open %s", shell_dir);
+        exit(EXIT_FAILURE);
+    }
+
+    install_shell_file(dex_path, shell_fd, "sui.dex");
+    for (auto name : {"librish.so", "libsui_spawn.so", "libsui.so"}) {
+        char lib_path[PATH_MAX];
+        snprintf(lib_path, PATH_MAX, "%s/%s", root_path, name);
+        install_shell_file(lib_path, shell_fd, name);
+    }
+    install_shell_oat(shell_fd);
+    close(shell_fd);
+    startup_trace_end();
+
+    // Set SELinux context to shell BEFORE dropping UID/GID (requires root privileges)
+    if (setcon("u:r:shell:s0") != 0) {
+        PLOGE("setcon u:r:shell:s0");
+        exit(EXIT_FAILURE);
+    }
+
+    // Set GID to shell (2000)
+    if (setresgid(2000, 2000, 2000) != 0) {
+        PLOGE("setresgid 2000");
+        exit(EXIT_FAILURE);
+    }
+
+    // Set UID to shell (2000)
+    if (setresuid(2000, 2000, 2000) != 0) {
+        PLOGE("setresuid 2000");
+        exit(EXIT_FAILURE);
+    }
+
+    char shell_dex_path[PATH_MAX];
+    snprintf(shell_dex_path, PATH_MAX, "%s/sui.dex", shell_dir);
+    startup_trace_export();
+    app_process(shell_dex_path, shell_dir, "rikka.sui.server.Starter", "sui_shell", "--shell");
+    exit(EXIT_FAILURE);
+}
+
+static long long next_backoff(long long backoff) {
+    return backoff == 0 ? RESTART_BACKOFF_MIN_MS : std::min(backoff * 2, RESTART_BACKOFF_MAX_MS);
+}
+
+static void start_server(server& s, long long now) {
+    s.pid = s.spawn();
+    if (s.pid < 0) {
+        PLOGE("fork %s server", s.name);
+        s.pid = -1;
+        s.backoff = next_backoff(s.backoff);
+        s.restart_at = now + s.backoff;
+        return;
+    }
+
+    s.pidfd = static_cast<int>(syscall(__NR_pidfd_open, s.pid, 0));
+    if (s.pidfd == -1 && errno != ENOSYS) {
+        PLOGE("pidfd_open %d", s.pid);
+    }
+    s.started_at = now;
+    LOGI("%s server started: %d", s.name, s.pid);
+}
+
+static void on_server_exited(server& s, int status, long long now) {
+    if (s.pidfd != -1) {
+        close(s.pidfd);
+        s.pidfd = -1;
+    }
+
+    long long ran = now - s.started_at;
+    if (ran >= STABLE_RUN_MS) {
+        s.backoff = 0;
+    } else {
+        s.backoff = next_backoff(s.backoff);
+    }
+    s.restart_at = now + s.backoff;
+
+    if (WIFSIGNALED(status)) {
+        LOGW("%s server %d killed by signal %d after %lld ms, restart in %lld ms", s.name, s.pid,
+             WTERMSIG(status), ran, s.backoff);
+    } else {
+        LOGW("%s server %d exited with %d after %lld ms, restart in %lld ms", s.name, s.pid,
+             WEXITSTATUS(status), ran, s.backoff);
+    }
+    s.pid = -1;
+}
+
+/*
+ * Keeps the servers running. The supervisor sleeps in poll until a server exits, which the pidfd
+ * of the server (or SIGCHLD through a signalfd on older kernels) reports right away, or until a
+ * restart delayed by the backoff is due.
+ */
+[[noreturn]] static void supervise(server* servers, size_t count) {
+    sigset_t mask;
+    sigemptyset(&mask);
+    sigaddset(&mask, SIGCHLD);
+    if (sigprocmask(SIG_BLOCK, &mask, nullptr) != 0) {
+        PLOGE("sigprocmask");
+    }
+    int sigfd = signalfd(-1, &mask, SFD_CLOEXEC | SFD_NONBLOCK);
+    if (sigfd == -1) {
+        PLOGE("signalfd");
+    }
+
+    bool first_start = true;
+    while (true) {
+        long long now = monotonic_ms();
+        int timeout = -1;
+        for (size_t i = 0; i < count; ++i) {
+            server& s = servers[i];
+            if (s.pid == -1 && now >= s.restart_at) {
+                start_server(s, now);
+            }
+            if (s.pid == -1) {
+                int delay = static_cast<int>(s.restart_at - now);
+                timeout = timeout == -1 ? delay : std::min(timeout, delay);
+            }
+        }
+        if (first_start) {
+            // Phases recorded so far belong to the first start only, restarts export their own.
+            startup_trace_reset();
+            first_start = false;
+        }
+
+        std::vector<pollfd> fds;
+        bool need_sigchld = false;
+        for (size_t i = 0; i < count; ++i) {
+            if (servers[i].pid == -1) continue;
+            if (servers[i].pidfd != -1) {
+                fds.push_back({servers[i].pidfd, POLLIN, 0});
+            } else {
+                need_sigchld = true;
+            }
+        }
+        if (need_sigchld) {
+            if (sigfd != -1) {
+                fds.push_back({sigfd, POLLIN, 0});
+            } else {
+                // Neither pidfd nor signalfd, check once a second.
+                timeout = timeout == -1 ? 1000 : std::min(timeout, 1000);
+            }
+        }
+
+        if (poll(fds.data(), fds.size(), timeout) == -1 && errno != EINTR) {
+            PLOGE("poll");
+            sleep(1);
+        }
+
+        if (sigfd != -1) {
+            signalfd_siginfo info{};
+            while (read(sigfd, &info, sizeof(info)) == sizeof(info)) {
+            }
+        }
+
+        now = monotonic_ms();
+        for (size_t i = 0; i < count; ++i) {
+            server& s = servers[i];
+            int status;
+            if (s.pid != -1 && waitpid(s.pid, &status, WNOHANG) == s.pid) {
+                on_server_exited(s, status, now);
+            }
+        }
+    }
+}
+
 /*
  * argv[1]: path of the module, such as /data/adb/modules/zygisk-sui
  */
@@ -255,7 +583,12 @@ static int sui_main(int argc, char** argv) {
         }
     }
 
+    startup_trace_init();
+    startup_trace_begin("sui_main");
+
+    startup_trace_begin("wait_for_zygote");
     wait_for_zygote();
+    startup_trace_end();
 
     if (access(SUI_DATA_DIR, F_OK) != 0) {
         mkdir(SUI_DATA_DIR, 0700);
@@ -274,71 +607,12 @@ static int sui_main(int argc, char** argv) {
     // Resolve and persist shell workdir before forking so root/shell servers share
     // the same directory from the first startup tick.
     std::string shell_dir_path = resolve_shell_dir_path();
-
-    pid_t pid = fork();
-    if (pid < 0) {
-        PLOGE("fork");
-        return EXIT_FAILURE;
-    }
-
-    if (pid == 0) {
-        // Child process -> Shell Server
-        // uid 2000 cannot read /data/adb/modules/zygisk-sui/sui.dex or .so libraries
-        const char* shell_dir = shell_dir_path.c_str();
-        ensure_dir(shell_dir, 0755);
-        chmod(shell_dir, 0755);
-        chown(shell_dir, 2000, 2000);
-
-        char shell_dex_path[PATH_MAX];
-        snprintf(shell_dex_path, PATH_MAX, "%s/sui.dex", shell_dir);
-        if (copyfile(dex_path, shell_dex_path) == 0) {
-            chmod(shell_dex_path, 0644);
-            chown(shell_dex_path, 2000, 2000);
-        }
-
-        char lib_path[PATH_MAX];
-        snprintf(lib_path, PATH_MAX, "%s/librish.so", root_path);
-        char shell_lib_path[PATH_MAX];
-        snprintf(shell_lib_path, PATH_MAX, "%s/librish.so", shell_dir);
-        if (copyfile(lib_path, shell_lib_path) == 0) {
-            chmod(shell_lib_path, 0644);
-            chown(shell_lib_path, 2000, 2000);
-        }
-
-        char libsui_path[PATH_MAX];
-        snprintf(libsui_path, PATH_MAX, "%s/libsui.so", root_path);
-        char shell_libsui_path[PATH_MAX];
-        snprintf(shell_libsui_path, PATH_MAX, "%s/libsui.so", shell_dir);
-        if (copyfile(libsui_path, shell_libsui_path) == 0) {
-            chmod(shell_libsui_path, 0644);
-            chown(shell_libsui_path, 2000, 2000);
-        }
-
-        // Set SELinux context to shell BEFORE dropping UID/GID (requires root privileges)
-        if (setcon("u:r:shell:s0") != 0) {
-            PLOGE("setcon u:r:shell:s0");
-            exit(EXIT_FAILURE);
-        }
-
-        // Set GID to shell (2000)
-        if (setresgid(2000, 2000, 2000) != 0) {
-            PLOGE("setresgid 2000");
-            exit(EXIT_FAILURE);
-        }
-
-        // Set UID to shell (2000)
-        if (setresuid(2000, 2000, 2000) != 0) {
-            PLOGE("setresuid 2000");
-            exit(EXIT_FAILURE);
-        }
-
-        app_process(shell_dex_path, shell_dir, "rikka.sui.server.Starter", "sui_shell", "--shell");
-        exit(EXIT_FAILURE);
-    } else {
-        // Parent process -> Root Server
-        app_process(dex_path, root_path, "rikka.sui.server.Starter", "sui");
-        exit(EXIT_FAILURE);
-    }
-
-    return EXIT_SUCCESS;
+    startup_trace_end();
+
+    server servers[] = {
+        {"root", [&]() { return spawn_root_server(dex_path, root_path); }},
+        {"shell",
+         [&]() { return spawn_shell_server(dex_path, root_path, shell_dir_path.c_str()); }},
+    };
+    supervise(servers, sizeof(servers) / sizeof(servers[0]));
 }
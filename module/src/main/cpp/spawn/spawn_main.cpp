@@ -0,0 +1,224 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+#include <cerrno>
+#include <csignal>
+#include <cstdint>
+#include <cstring>
+#include <fcntl.h>
+#include <jni.h>
+#include <string>
+#include <sys/resource.h>
+#include <sys/syscall.h>
+#include <sys/wait.h>
+#include <unistd.h>
+#include <vector>
+
+#include "logging.h"
+
+namespace {
+
+bool get_strings(JNIEnv* env, jobjectArray array, std::vector<std::string>& out) {
+    jsize len = env->GetArrayLength(array);
+    out.reserve(len);
+    for (jsize i = 0; i < len; i++) {
+        auto str = (jstring)env->GetObjectArrayElement(array, i);
+        if (!str) {
+            return false;
+        }
+        const char* chars = env->GetStringUTFChars(str, nullptr);
+        if (!chars) {
+            env->DeleteLocalRef(str);
+            return false;
+        }
+        out.emplace_back(chars);
+        env->ReleaseStringUTFChars(str, chars);
+        env->DeleteLocalRef(str);
+    }
+    return true;
+}
+
+std::vector<char*> to_argv(std::vector<std::string>& strings) {
+    std::vector<char*> argv;
+    argv.reserve(strings.size() + 1);
+    for (auto& s : strings) {
+        argv.push_back(s.data());
+    }
+    argv.push_back(nullptr);
+    return argv;
+}
+
+// Size of the kernel sigset_t, which is what rt_sig* take.
+constexpr size_t KERNEL_SIGSET_SIZE = sizeof(uint64_t);
+
+/*
+ * Signal masks and handlers are changed with raw syscalls around vfork. app_process links
+ * libsigchain, whose sigaction and sigprocmask skip the signals ART claims and keep their state in
+ * memory the vfork child shares with us.
+ */
+int raw_sigprocmask(int how, const uint64_t* set, uint64_t* old) {
+    return (int)syscall(__NR_rt_sigprocmask, how, set, old, KERNEL_SIGSET_SIZE);
+}
+
+// Called in the vfork child, only syscalls from here.
+void reset_signal_handlers() {
+    // SIG_DFL is 0, so a zeroed kernel sigaction is a default one with no flags on every ABI.
+    unsigned long sa[8] = {};
+    for (int sig = 1; sig <= 64; sig++) {
+        if (sig != SIGKILL && sig != SIGSTOP) {
+            syscall(__NR_rt_sigaction, sig, sa, nullptr, KERNEL_SIGSET_SIZE);
+        }
+    }
+}
+
+void close_fds_from(int low_fd, int max_fd) {
+#ifdef __NR_close_range
+    if (syscall(__NR_close_range, low_fd, ~0U, 0) == 0) {
+        return;
+    }
+#endif
+    for (int fd = low_fd; fd < max_fd; fd++) {
+        close(fd);
+    }
+}
+
+jint spawn(JNIEnv* env, jclass, jstring jfile, jobjectArray jargv, jobjectArray jenvp) {
+    std::vector<std::string> args, envs;
+    if (!get_strings(env, jargv, args) || !get_strings(env, jenvp, envs) || args.empty()) {
+        return -EINVAL;
+    }
+    const char* file_chars = env->GetStringUTFChars(jfile, nullptr);
+    if (!file_chars) {
+        return -ENOMEM;
+    }
+    std::string file = file_chars;
+    env->ReleaseStringUTFChars(jfile, file_chars);
+
+    std::vector<char*> argv = to_argv(args);
+    std::vector<char*> envp = to_argv(envs);
+
+    int null_fd = open("/dev/null", O_RDWR | O_CLOEXEC);
+    if (null_fd < 0) {
+        int err = errno;
+        PLOGE("open /dev/null");
+        return -err;
+    }
+
+    int max_fd = 1024;
+    struct rlimit rl {};
+    if (getrlimit(RLIMIT_NOFILE, &rl) == 0 && rl.rlim_cur != RLIM_INFINITY) {
+        max_fd = (int)rl.rlim_cur;
+    }
+
+    // Signal handlers of the runtime must not run in the child, which still shares our memory.
+    const uint64_t all = ~0ULL;
+    const uint64_t empty = 0;
+    uint64_t old = 0;
+    raw_sigprocmask(SIG_SETMASK, &all, &old);
+
+    // Written by the child if execve fails, the parent sees it once vfork returns.
+    volatile int exec_errno = 0;
+
+    pid_t pid = vfork();
+    if (pid == 0) {
+        // The child has its own kernel handler table, reset it before unblocking so nothing
+        // inherited runs.
+        reset_signal_handlers();
+
+        dup2(null_fd, STDIN_FILENO);
+        dup2(null_fd, STDOUT_FILENO);
+        dup2(null_fd, STDERR_FILENO);
+        close_fds_from(STDERR_FILENO + 1, max_fd);
+
+        raw_sigprocmask(SIG_SETMASK, &empty, nullptr);
+        execve(file.c_str(), argv.data(), envp.data());
+        exec_errno = errno;
+        _exit(127);
+    }
+
+    int err = pid < 0 ? errno : exec_errno;
+    raw_sigprocmask(SIG_SETMASK, &old, nullptr);
+    close(null_fd);
+
+    if (pid < 0) {
+        LOGE("vfork failed with %d: %s", err, strerror(err));
+        return -err;
+    }
+    if (err != 0) {
+        LOGE("execve %s failed with %d: %s", file.c_str(), err, strerror(err));
+        waitpid(pid, nullptr, 0);
+        return -err;
+    }
+    return pid;
+}
+
+// Blocks until some child has exited and returns its pid, or -errno. The child is left to be
+// reaped by whoever owns it, so processes started with Runtime.exec keep their exit status.
+jint wait_exited(JNIEnv*, jclass) {
+    siginfo_t info;
+    while (true) {
+        info.si_pid = 0;
+        if (waitid(P_ALL, 0, &info, WEXITED | WNOWAIT) == 0) {
+            return info.si_pid;
+        }
+        if (errno != EINTR) {
+            return -errno;
+        }
+    }
+}
+
+// Reaps pid, returns its wait status or -errno.
+jint reap(JNIEnv*, jclass, jint pid) {
+    int status;
+    while (waitpid(pid, &status, 0) < 0) {
+        if (errno != EINTR) {
+            return -errno;
+        }
+    }
+    return status;
+}
+
+}  // namespace
+
+extern "C" JNIEXPORT jint JNI_OnLoad(JavaVM* vm, void*) {
+    JNIEnv* env;
+    if (vm->GetEnv((void**)&env, JNI_VERSION_1_6) != JNI_OK) {
+        return -1;
+    }
+
+    jclass clazz = env->FindClass("rikka/sui/server/NativeSpawn");
+    if (!clazz) {
+        LOGE("unable to find NativeSpawn");
+        return -1;
+    }
+
+    JNINativeMethod methods[] = {
+        {"nativeSpawn", "(Ljava/lang/String;[Ljava/lang/String;[Ljava/lang/String;)I",
+         (void*)spawn},
+        {"nativeWaitExited", "()I", (void*)wait_exited},
+        {"nativeReap", "(I)I", (void*)reap},
+    };
+    if (env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0])) < 0) {
+        LOGE("unable to register natives");
+        env->DeleteLocalRef(clazz);
+        return -1;
+    }
+    env->DeleteLocalRef(clazz);
+    return JNI_VERSION_1_6;
+}
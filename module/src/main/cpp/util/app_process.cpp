@@ -25,6 +25,8 @@
 #include <android.h>
 #include <misc.h>
 #include <fcntl.h>
+#include <poll.h>
+#include <sys/inotify.h>
 
 #ifdef DEBUG
 #define JAVA_DEBUGGABLE
@@ -103,40 +105,81 @@ void app_process(const char* dex_path, const char* files_path, const char* main_
     }
 }
 
-void wait_for_zygote() {
-    while (true) {
-        static pid_t zygote_pid;
+static pid_t find_zygote() {
+    static pid_t zygote_pid;
 
-        zygote_pid = -1;
-        foreach_proc([](pid_t pid) -> bool {
-            if (pid == getpid())
-                return false;
+    zygote_pid = -1;
+    foreach_proc([](pid_t pid) -> bool {
+        if (pid == getpid())
+            return false;
 
 #ifdef __LP64__
-            const char* zygote_name = "zygote64";
+        const char* zygote_name = "zygote64";
 #else
-            const char* zygote_name = "zygote";
+        const char* zygote_name = "zygote";
 #endif
-            char buf[64];
-            snprintf(buf, 64, "/proc/%d/cmdline", pid);
-
-            int fd = open(buf, O_RDONLY);
-            if (fd > 0) {
-                memset(buf, 0, 64);
-                if (read(fd, buf, 64) > 0 && strcmp(zygote_name, buf) == 0) {
-                    zygote_pid = pid;
-                }
-                close(fd);
+        char buf[64];
+        snprintf(buf, 64, "/proc/%d/cmdline", pid);
+
+        int fd = open(buf, O_RDONLY);
+        if (fd > 0) {
+            memset(buf, 0, 64);
+            if (read(fd, buf, 64) > 0 && strcmp(zygote_name, buf) == 0) {
+                zygote_pid = pid;
             }
-            return zygote_pid != -1;
-        });
+            close(fd);
+        }
+        return zygote_pid != -1;
+    });
+    return zygote_pid;
+}
+
+/*
+ * init creates the sockets of zygote in /dev/socket right before starting it, so /proc is only
+ * scanned again when something shows up there. Zygote renames itself a moment after it starts,
+ * a few quick scans follow each event to catch that.
+ */
+void wait_for_zygote() {
+    static constexpr int QUICK_SCANS = 40;
+    static constexpr int QUICK_SCAN_INTERVAL_MS = 50;
+    // In case an event is missed, such as zygote started before the watch was added.
+    static constexpr int IDLE_SCAN_INTERVAL_MS = 5000;
 
+    int inotify_fd = inotify_init1(IN_CLOEXEC | IN_NONBLOCK);
+    if (inotify_fd != -1 &&
+        inotify_add_watch(inotify_fd, "/dev/socket", IN_CREATE | IN_MOVED_TO) == -1) {
+        PLOGE("inotify_add_watch /dev/socket");
+        close(inotify_fd);
+        inotify_fd = -1;
+    }
+
+    int quick_scans = 0;
+    while (true) {
+        pid_t zygote_pid = find_zygote();
         if (zygote_pid != -1) {
             LOGI("found zygote %d", zygote_pid);
             break;
         }
 
-        LOGV("zygote not started, wait 1s...");
-        sleep(1);
+        if (inotify_fd == -1) {
+            LOGV("zygote not started, wait 1s...");
+            sleep(1);
+            continue;
+        }
+
+        pollfd pfd = {inotify_fd, POLLIN, 0};
+        int timeout = quick_scans > 0 ? QUICK_SCAN_INTERVAL_MS : IDLE_SCAN_INTERVAL_MS;
+        if (poll(&pfd, 1, timeout) > 0) {
+            char buf[4096];
+            while (read(inotify_fd, buf, sizeof(buf)) > 0) {
+            }
+            quick_scans = QUICK_SCANS;
+        } else if (quick_scans > 0) {
+            --quick_scans;
+        }
+    }
+
+    if (inotify_fd != -1) {
+        close(inotify_fd);
     }
 }
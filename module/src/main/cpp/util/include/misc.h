@@ -27,6 +27,20 @@ int mkdirs(const char* pathname, mode_t mode);
 int ensure_dir(const char* path, mode_t mode);
 int copyfileat(int src_path_fd, const char* src_path, int dst_path_fd, const char* dst_path);
 int copyfile(const char* src_path, const char* dst_path);
+
+/*
+ * Makes dst_name in dst_dir_fd a copy of src_path owned by uid:gid with mode, unless it already is
+ * one with the same content. The copy replaces dst_name atomically, copied tells whether it was
+ * written. dst_name is not followed if it is a symlink.
+ */
+int update_file_at(const char* src_path, int dst_dir_fd, const char* dst_name, mode_t mode,
+                   uid_t uid, gid_t gid, bool* copied);
+
+/*
+ * Opens the directory name in parent_fd owned by uid:gid with mode, creating it if needed. A
+ * symlink or file in its place is replaced instead of followed.
+ */
+int open_owned_dir_at(int parent_fd, const char* name, mode_t mode, uid_t uid, gid_t gid);
 ssize_t read_eintr(int fd, void* out, size_t len);
 int read_full(int fd, void* buf, size_t count);
 int write_full(int fd, const void* buf, size_t count);
@@ -0,0 +1,37 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+#ifndef _STARTUP_TRACE_H
+#define _STARTUP_TRACE_H
+
+/*
+ * Startup phases of sui_main, timed with CLOCK_BOOTTIME like SystemClock.elapsedRealtime(). They
+ * are handed to the Java server in the environment, which adds its own and keeps the timeline.
+ * When /data/adb/sui/trace_startup exists, phases are also written to trace_marker as atrace
+ * sections so they show up in Perfetto and systrace.
+ */
+void startup_trace_init();
+void startup_trace_begin(const char* name);
+void startup_trace_end();
+// Drops the recorded phases, later exports only contain the phases begun after it.
+void startup_trace_reset();
+// Ends all open phases and puts them into the environment of the process about to be exec'd.
+void startup_trace_export();
+
+#endif  // _STARTUP_TRACE_H
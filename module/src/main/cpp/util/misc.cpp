@@ -27,6 +27,7 @@
 #include <sys/stat.h>
 #include <cstdlib>
 #include <dirent.h>
+#include <climits>
 #include "misc.h"
 
 int mkdirs(const char* pathname, mode_t mode) {
@@ -180,3 +181,111 @@ void foreach_proc(foreach_proc_function* func) {
 
     closedir(dir);
 }
+
+static bool same_content(int a_fd, int b_fd) {
+    struct stat a_stat{}, b_stat{};
+    char a_buf[16384], b_buf[16384];
+
+    if (fstat(a_fd, &a_stat) == -1 || fstat(b_fd, &b_stat) == -1 || !S_ISREG(b_stat.st_mode) ||
+        a_stat.st_size != b_stat.st_size)
+        return false;
+
+    for (off_t remaining = a_stat.st_size; remaining > 0;) {
+        size_t count = remaining > (off_t)sizeof(a_buf) ? sizeof(a_buf) : (size_t)remaining;
+        if (read_full(a_fd, a_buf, count) != 0 || read_full(b_fd, b_buf, count) != 0 ||
+            memcmp(a_buf, b_buf, count) != 0)
+            return false;
+        remaining -= (off_t)count;
+    }
+    return true;
+}
+
+int update_file_at(const char* src_path, int dst_dir_fd, const char* dst_name, mode_t mode,
+                   uid_t uid, gid_t gid, bool* copied) {
+    *copied = false;
+
+    int src_fd = open(src_path, O_RDONLY | O_CLOEXEC);
+    if (src_fd == -1)
+        return -1;
+    struct stat stat_buf{};
+    if (fstat(src_fd, &stat_buf) == -1) {
+        close(src_fd);
+        return -1;
+    }
+
+    // The directory may be writable by others, nothing in it is followed or trusted to be ours.
+    int dst_fd = openat(dst_dir_fd, dst_name, O_RDONLY | O_NOFOLLOW | O_CLOEXEC);
+    if (dst_fd != -1) {
+        bool same = same_content(src_fd, dst_fd);
+        if (same && (fchmod(dst_fd, mode) == -1 || fchown(dst_fd, uid, gid) == -1))
+            same = false;
+        close(dst_fd);
+        if (same) {
+            close(src_fd);
+            return 0;
+        }
+        lseek(src_fd, 0, SEEK_SET);
+    }
+
+    // Written aside and renamed over, processes that still map the old file keep their inode.
+    char tmp_name[NAME_MAX + 1];
+    if (snprintf(tmp_name, sizeof(tmp_name), "%s.tmp", dst_name) >= (int)sizeof(tmp_name)) {
+        close(src_fd);
+        errno = ENAMETOOLONG;
+        return -1;
+    }
+    unlinkat(dst_dir_fd, tmp_name, 0);
+    dst_fd = openat(dst_dir_fd, tmp_name, O_WRONLY | O_CREAT | O_EXCL | O_NOFOLLOW | O_CLOEXEC,
+                    0600);
+    if (dst_fd == -1) {
+        close(src_fd);
+        return -1;
+    }
+
+    int result = 0;
+    for (off_t remaining = stat_buf.st_size; remaining > 0 && result == 0;) {
+        size_t count = remaining > 0x7ffff000 ? 0x7ffff000 : (size_t)remaining;
+        ssize_t sent = sendfile(dst_fd, src_fd, nullptr, count);
+        if (sent <= 0)
+            result = -1;
+        else
+            remaining -= sent;
+    }
+    if (result == 0 && (fchmod(dst_fd, mode) == -1 || fchown(dst_fd, uid, gid) == -1))
+        result = -1;
+    close(src_fd);
+    close(dst_fd);
+
+    if (result == 0 && renameat(dst_dir_fd, tmp_name, dst_dir_fd, dst_name) == -1)
+        result = -1;
+    if (result != 0) {
+        unlinkat(dst_dir_fd, tmp_name, 0);
+        return -1;
+    }
+    *copied = true;
+    return 0;
+}
+
+int open_owned_dir_at(int parent_fd, const char* name, mode_t mode, uid_t uid, gid_t gid) {
+    if (mkdirat(parent_fd, name, mode) == -1 && errno != EEXIST)
+        return -1;
+
+    int fd = openat(parent_fd, name, O_RDONLY | O_DIRECTORY | O_NOFOLLOW | O_CLOEXEC);
+    if (fd == -1 && (errno == ELOOP || errno == ENOTDIR)) {
+        // Something else is in its place, such as a symlink, replace it once.
+        if (unlinkat(parent_fd, name, 0) == -1 ||
+            (mkdirat(parent_fd, name, mode) == -1 && errno != EEXIST))
+            return -1;
+        fd = openat(parent_fd, name, O_RDONLY | O_DIRECTORY | O_NOFOLLOW | O_CLOEXEC);
+    }
+    if (fd == -1)
+        return -1;
+
+    if (fchmod(fd, mode) == -1 || fchown(fd, uid, gid) == -1) {
+        int err = errno;
+        close(fd);
+        errno = err;
+        return -1;
+    }
+    return fd;
+}
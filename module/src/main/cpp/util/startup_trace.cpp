@@ -0,0 +1,125 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+#include <cstdarg>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <ctime>
+#include <fcntl.h>
+#include <unistd.h>
+#include <logging.h>
+#include <misc.h>
+#include <startup_trace.h>
+
+static constexpr const char* TRACE_ENABLE_FILE = "/data/adb/sui/trace_startup";
+static constexpr const char* TRACE_ENV = "SUI_STARTUP_TRACE";
+static constexpr const char* ATRACE_ENV = "SUI_STARTUP_ATRACE";
+static constexpr const char* TRACE_MARKER_PATHS[] = {"/sys/kernel/tracing/trace_marker",
+                                                     "/sys/kernel/debug/tracing/trace_marker"};
+static constexpr int MAX_PHASES = 16;
+
+struct phase {
+    const char* name;
+    long long start;
+    long long end;
+};
+
+static phase phases[MAX_PHASES];
+static int phase_count = 0;
+static int trace_fd = -1;
+
+static long long now_ms() {
+    timespec ts{};
+    clock_gettime(CLOCK_BOOTTIME, &ts);
+    return ts.tv_sec * 1000LL + ts.tv_nsec / 1000000;
+}
+
+static void write_marker(const char* fmt, ...) __attribute__((format(printf, 1, 2)));
+
+static void write_marker(const char* fmt, ...) {
+    if (trace_fd == -1) return;
+
+    char buf[128];
+    va_list args;
+    va_start(args, fmt);
+    int len = vsnprintf(buf, sizeof(buf), fmt, args);
+    va_end(args);
+    if (len > 0) {
+        write_full(trace_fd, buf, len < (int)sizeof(buf) ? len : sizeof(buf) - 1);
+    }
+}
+
+void startup_trace_init() {
+    phase_count = 0;
+    if (trace_fd != -1 || access(TRACE_ENABLE_FILE, F_OK) != 0) return;
+
+    for (auto path : TRACE_MARKER_PATHS) {
+        trace_fd = open(path, O_WRONLY | O_CLOEXEC);
+        if (trace_fd != -1) {
+            LOGI("startup trace markers go to %s", path);
+            return;
+        }
+    }
+    PLOGE("open trace_marker");
+}
+
+void startup_trace_begin(const char* name) {
+    if (phase_count == MAX_PHASES) return;
+
+    phases[phase_count++] = {name, now_ms(), -1};
+    write_marker("B|%d|sui:%s", getpid(), name);
+}
+
+void startup_trace_end() {
+    for (int i = phase_count - 1; i >= 0; --i) {
+        if (phases[i].end == -1) {
+            phases[i].end = now_ms();
+            write_marker("E|%d", getpid());
+            return;
+        }
+    }
+}
+
+void startup_trace_reset() {
+    phase_count = 0;
+}
+
+void startup_trace_export() {
+    // Innermost first, so the trace_marker sections stay nested.
+    for (int i = phase_count - 1; i >= 0; --i) {
+        if (phases[i].end == -1) startup_trace_end();
+    }
+
+    // name:start:end, separated by commas
+    char buf[1024];
+    size_t len = 0;
+    buf[0] = '\0';
+    for (int i = 0; i < phase_count && len < sizeof(buf); ++i) {
+        int n = snprintf(buf + len, sizeof(buf) - len, "%s%s:%lld:%lld", i == 0 ? "" : ",",
+                         phases[i].name, phases[i].start, phases[i].end);
+        if (n < 0 || (size_t)n >= sizeof(buf) - len) break;
+        len += n;
+    }
+
+    setenv(TRACE_ENV, buf, true);
+    if (trace_fd != -1) {
+        setenv(ATRACE_ENV, "1", true);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import java.util.Collections;
+import java.util.List;
+import rikka.parcelablelist.ParcelableListSlice;
+
+/**
+ * Rows of the app list that changed after a generation. Rows are identified by uid and package name.
+ */
+public class AppListChanges implements Parcelable {
+
+    // Generation of the list after applying these changes, pass it to the next query.
+    public long generation;
+    // If true, changed is the whole list and anything not in it should be dropped.
+    public boolean reset;
+    public List<CompactAppInfo> changed = Collections.emptyList();
+    public int[] removedUids = new int[0];
+    public String[] removedPackages = new String[0];
+
+    public AppListChanges() {}
+
+    @SuppressWarnings("unchecked")
+    protected AppListChanges(Parcel in) {
+        generation = in.readLong();
+        reset = in.readInt() != 0;
+        removedUids = in.createIntArray();
+        removedPackages = in.createStringArray();
+        changed = ParcelableListSlice.CREATOR.createFromParcel(in).getList();
+    }
+
+    public static final Creator<AppListChanges> CREATOR = new Creator<AppListChanges>() {
+        @Override
+        public AppListChanges createFromParcel(Parcel in) {
+            return new AppListChanges(in);
+        }
+
+        @Override
+        public AppListChanges[] newArray(int size) {
+            return new AppListChanges[size];
+        }
+    };
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(generation);
+        dest.writeInt(reset ? 1 : 0);
+        dest.writeIntArray(removedUids);
+        dest.writeStringArray(removedPackages);
+        new ParcelableListSlice<>(changed).writeToParcel(dest, flags);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import java.util.Collections;
+import java.util.List;
+import rikka.parcelablelist.ParcelableListSlice;
+
+/**
+ * One page of the app list, most relevant rows first.
+ */
+public class AppListPage implements Parcelable {
+
+    // Generation of the list the page is cut from, pass it back with the next offset.
+    public long generation;
+    // If it differs from the requested offset, the list changed and paging restarted from here.
+    public int offset;
+    public int total;
+    public List<CompactAppInfo> rows = Collections.emptyList();
+
+    public AppListPage() {}
+
+    @SuppressWarnings("unchecked")
+    protected AppListPage(Parcel in) {
+        generation = in.readLong();
+        offset = in.readInt();
+        total = in.readInt();
+        rows = ParcelableListSlice.CREATOR.createFromParcel(in).getList();
+    }
+
+    public static final Creator<AppListPage> CREATOR = new Creator<AppListPage>() {
+        @Override
+        public AppListPage createFromParcel(Parcel in) {
+            return new AppListPage(in);
+        }
+
+        @Override
+        public AppListPage[] newArray(int size) {
+            return new AppListPage[size];
+        }
+    };
+
+    public boolean hasMore() {
+        return offset + rows.size() < total;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(generation);
+        dest.writeInt(offset);
+        dest.writeInt(total);
+        new ParcelableListSlice<>(rows).writeToParcel(dest, flags);
+    }
+}
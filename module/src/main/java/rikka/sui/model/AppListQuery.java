@@ -0,0 +1,140 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.text.TextUtils;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Objects;
+import rikka.sui.server.SuiConfig;
+
+/**
+ * Filter of the app list evaluated by the server. The default instance matches every row of every
+ * user.
+ */
+public class AppListQuery implements Parcelable {
+
+    // Case-insensitive substring of the package name or the non-localized label.
+    @Nullable public String text;
+    // Only rows with any of these permission flags, 0 for no restriction.
+    public int flagMask;
+    // Only Shizuku requesters and apps already allowed.
+    public boolean onlyShizuku;
+    // Only rows of these users, null for all users.
+    @Nullable public int[] userIds;
+
+    public AppListQuery() {}
+
+    @NonNull public static AppListQuery forUser(int userId, boolean onlyShizuku) {
+        AppListQuery query = new AppListQuery();
+        query.userIds = userId == -1 ? null : new int[] {userId};
+        query.onlyShizuku = onlyShizuku;
+        return query;
+    }
+
+    public boolean matches(@NonNull CompactAppInfo info) {
+        if (flagMask != 0 && (info.flags & flagMask) == 0) {
+            return false;
+        }
+        if (onlyShizuku
+                && !info.isShizukuRequester()
+                && (info.flags & (SuiConfig.FLAG_ALLOWED | SuiConfig.FLAG_ALLOWED_SHELL)) == 0) {
+            return false;
+        }
+        if (TextUtils.isEmpty(text)) {
+            return true;
+        }
+        return containsIgnoreCase(info.packageName, text)
+                || (info.nonLocalizedLabel != null && containsIgnoreCase(info.nonLocalizedLabel.toString(), text));
+    }
+
+    public boolean matchesUser(int userId) {
+        if (userIds == null) {
+            return true;
+        }
+        for (int id : userIds) {
+            if (id == userId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsIgnoreCase(String s, String part) {
+        int length = part.length();
+        for (int i = 0; i + length <= s.length(); i++) {
+            if (s.regionMatches(true, i, part, 0, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected AppListQuery(Parcel in) {
+        text = in.readString();
+        flagMask = in.readInt();
+        onlyShizuku = in.readInt() != 0;
+        userIds = in.createIntArray();
+    }
+
+    public static final Creator<AppListQuery> CREATOR = new Creator<AppListQuery>() {
+        @Override
+        public AppListQuery createFromParcel(Parcel in) {
+            return new AppListQuery(in);
+        }
+
+        @Override
+        public AppListQuery[] newArray(int size) {
+            return new AppListQuery[size];
+        }
+    };
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof AppListQuery)) return false;
+        AppListQuery that = (AppListQuery) o;
+        return flagMask == that.flagMask
+                && onlyShizuku == that.onlyShizuku
+                && Objects.equals(text, that.text)
+                && Arrays.equals(userIds, that.userIds);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(text, flagMask, onlyShizuku, Arrays.hashCode(userIds));
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(text);
+        dest.writeInt(flagMask);
+        dest.writeInt(onlyShizuku ? 1 : 0);
+        dest.writeIntArray(userIds);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.model;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.text.TextUtils;
+import androidx.annotation.NonNull;
+import rikka.sui.server.SuiConfig;
+
+/**
+ * The part of {@link AppInfo} the management UI actually uses, without the full PackageInfo.
+ */
+public class CompactAppInfo implements Parcelable {
+
+    public static final int ATTR_SHIZUKU_REQUESTER = 1 << 0;
+
+    public String packageName;
+    public int uid;
+    public long versionCode;
+    public int flags;
+    public int defaultFlags;
+    public int attributes;
+
+    // ApplicationInfo fields needed to load label and icon
+    public int applicationFlags;
+    public boolean enabled;
+    public int labelRes;
+    public CharSequence nonLocalizedLabel;
+    public int icon;
+    public String sourceDir;
+    public String publicSourceDir;
+    public String[] splitSourceDirs;
+    public String[] splitPublicSourceDirs;
+
+    public CompactAppInfo() {}
+
+    @SuppressWarnings("deprecation")
+    @NonNull public static CompactAppInfo from(@NonNull PackageInfo pi, int flags, int defaultFlags, int attributes) {
+        ApplicationInfo ai = pi.applicationInfo;
+        CompactAppInfo info = new CompactAppInfo();
+        info.packageName = pi.packageName;
+        info.uid = ai.uid;
+        info.versionCode = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? pi.getLongVersionCode() : pi.versionCode;
+        info.flags = flags;
+        info.defaultFlags = defaultFlags;
+        info.attributes = attributes;
+        info.applicationFlags = ai.flags;
+        info.enabled = ai.enabled;
+        info.labelRes = ai.labelRes;
+        info.nonLocalizedLabel = ai.nonLocalizedLabel;
+        info.icon = ai.icon;
+        info.sourceDir = ai.sourceDir;
+        info.publicSourceDir = ai.publicSourceDir;
+        info.splitSourceDirs = ai.splitSourceDirs;
+        info.splitPublicSourceDirs = ai.splitPublicSourceDirs;
+        return info;
+    }
+
+    /**
+     * Returns a copy with other permission flags, instances shared between threads are never modified.
+     */
+    @NonNull public CompactAppInfo withFlags(int flags, int defaultFlags) {
+        CompactAppInfo info = new CompactAppInfo();
+        info.packageName = packageName;
+        info.uid = uid;
+        info.versionCode = versionCode;
+        info.flags = flags;
+        info.defaultFlags = defaultFlags;
+        info.attributes = attributes;
+        info.applicationFlags = applicationFlags;
+        info.enabled = enabled;
+        info.labelRes = labelRes;
+        info.nonLocalizedLabel = nonLocalizedLabel;
+        info.icon = icon;
+        info.sourceDir = sourceDir;
+        info.publicSourceDir = publicSourceDir;
+        info.splitSourceDirs = splitSourceDirs;
+        info.splitPublicSourceDirs = splitPublicSourceDirs;
+        return info;
+    }
+
+    public boolean isShizukuRequester() {
+        return (attributes & ATTR_SHIZUKU_REQUESTER) != 0;
+    }
+
+    /**
+     * Rank of an app in the management list, lower first: configured apps by their permission, then
+     * Shizuku requesters, then the rest. Within a rank the list is ordered by package name, then uid.
+     * The server pages the list in this order and the UI sorts by it too, so later pages only append.
+     */
+    public static int getListRank(int flags, int attributes) {
+        if ((flags & SuiConfig.FLAG_ALLOWED) != 0) {
+            return 0;
+        }
+        if ((flags & SuiConfig.FLAG_ALLOWED_SHELL) != 0) {
+            return 1;
+        }
+        if ((flags & SuiConfig.FLAG_DENIED) != 0) {
+            return 2;
+        }
+        if ((flags & SuiConfig.FLAG_HIDDEN) != 0) {
+            return 3;
+        }
+        return (attributes & ATTR_SHIZUKU_REQUESTER) != 0 ? 4 : 5;
+    }
+
+    protected CompactAppInfo(Parcel in) {
+        packageName = in.readString();
+        uid = in.readInt();
+        versionCode = in.readLong();
+        flags = in.readInt();
+        defaultFlags = in.readInt();
+        attributes = in.readInt();
+        applicationFlags = in.readInt();
+        enabled = in.readInt() != 0;
+        labelRes = in.readInt();
+        nonLocalizedLabel = TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(in);
+        icon = in.readInt();
+        sourceDir = in.readString();
+        publicSourceDir = in.readString();
+        splitSourceDirs = in.createStringArray();
+        splitPublicSourceDirs = in.createStringArray();
+    }
+
+    public static final Creator<CompactAppInfo> CREATOR = new Creator<CompactAppInfo>() {
+        @Override
+        public CompactAppInfo createFromParcel(Parcel in) {
+            return new CompactAppInfo(in);
+        }
+
+        @Override
+        public CompactAppInfo[] newArray(int size) {
+            return new CompactAppInfo[size];
+        }
+    };
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(packageName);
+        dest.writeInt(uid);
+        dest.writeLong(versionCode);
+        dest.writeInt(this.flags);
+        dest.writeInt(defaultFlags);
+        dest.writeInt(attributes);
+        dest.writeInt(applicationFlags);
+        dest.writeInt(enabled ? 1 : 0);
+        dest.writeInt(labelRes);
+        TextUtils.writeToParcel(nonLocalizedLabel, dest, flags);
+        dest.writeInt(icon);
+        dest.writeString(sourceDir);
+        dest.writeString(publicSourceDir);
+        dest.writeStringArray(splitSourceDirs);
+        dest.writeStringArray(splitPublicSourceDirs);
+    }
+}
@@ -24,25 +24,88 @@ import static rikka.sui.server.ServerConstants.LOGGER;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageInfoHidden;
-import android.content.pm.PackageManager;
 import android.os.Build;
-import android.util.ArrayMap;
+import android.os.SystemClock;
 import dev.rikka.tools.refine.Refine;
-import java.io.File;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import rikka.hidden.compat.PackageManagerApis;
 import rikka.hidden.compat.UserManagerApis;
 import rikka.parcelablelist.ParcelableListSlice;
 import rikka.sui.model.AppInfo;
-import rikka.sui.util.MapUtil;
 import rikka.sui.util.UserHandleCompat;
 
 public class AppListBuilder {
 
+    // Per-user enumeration is mostly binder calls and stat, a few threads are enough to overlap them.
+    private static final int MAX_USER_THREADS = 4;
+    private static final ThreadPoolExecutor USER_EXECUTOR;
+
+    private static final PathExistenceCache EXISTENCE_CACHE = new PathExistenceCache();
+
+    static {
+        AtomicInteger count = new AtomicInteger();
+        USER_EXECUTOR = new ThreadPoolExecutor(
+                MAX_USER_THREADS,
+                MAX_USER_THREADS,
+                30,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "sui-app-list-" + count.incrementAndGet()));
+        USER_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    interface UserTask<T> {
+        T run(int user) throws Exception;
+    }
+
+    /**
+     * Runs task for every user on a bounded pool and returns the results in the order of users, a
+     * failed user gives null. A single user runs on the calling thread.
+     */
+    static <T> List<T> forEachUser(List<Integer> users, UserTask<T> task) {
+        List<T> results = new ArrayList<>(users.size());
+        if (users.size() <= 1) {
+            for (int user : users) {
+                results.add(runUserTask(task, user));
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<>(users.size());
+        for (int user : users) {
+            futures.add(USER_EXECUTOR.submit(() -> runUserTask(task, user)));
+        }
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                results.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.add(null);
+            }
+        }
+        return results;
+    }
+
+    private static <T> T runUserTask(UserTask<T> task, int user) {
+        try {
+            return task.run(user);
+        } catch (Throwable e) {
+            LOGGER.w(e, "AppListBuilder: task of user %d failed", user);
+            return null;
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private static List<PackageInfo> getInstalledPackagesFallback(long flags, int user) {
         try {
@@ -91,16 +154,65 @@ public class AppListBuilder {
         return Collections.emptyList();
     }
 
-    private static int getFlagsForUidInternal(SuiConfigManager configManager, int uid, int mask) {
-        SuiConfig.PackageEntry entry = configManager.findExplicit(uid);
-        if (entry != null) {
-            return entry.flags & mask;
+    /**
+     * Installed packages of user, falls back to AppGlobals when PackageManagerApis returns nothing.
+     */
+    static List<PackageInfo> getInstalledPackages(int flags, int user) {
+        List<PackageInfo> packages = PackageManagerApis.getInstalledPackagesNoThrow(flags, user);
+        if (packages.isEmpty()) {
+            LOGGER.w(
+                    "AppListBuilder: PackageManagerApis.getInstalledPackagesNoThrow returned 0 packages for user %d",
+                    user);
+            packages = getInstalledPackagesFallback(flags, user);
+        }
+        return packages;
+    }
+
+    /**
+     * Whether pi can show up in the list at all, regardless of its config.
+     */
+    static boolean isCandidate(PackageInfo pi, int systemUiUid) {
+        return pi.applicationInfo != null
+                && Refine.<PackageInfoHidden>unsafeCast(pi).overlayTarget == null
+                && (pi.applicationInfo.flags & ApplicationInfo.FLAG_HAS_CODE) != 0
+                && pi.applicationInfo.uid != systemUiUid;
+    }
+
+    /**
+     * Whether the package is installed for its user. Paths checked recently are not checked again
+     * unless fresh is set, pass it when the package is known to have just changed.
+     */
+    static boolean isInstalled(ApplicationInfo ai, boolean fresh) {
+        String sourceDir = ai.sourceDir;
+        String dataDir = ai.dataDir;
+        String deviceProtectedDataDir =
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ? ai.deviceProtectedDataDir : null;
+        boolean hasApk = sourceDir != null && EXISTENCE_CACHE.exists(sourceDir, fresh);
+        boolean hasData = (dataDir != null && EXISTENCE_CACHE.exists(dataDir, fresh))
+                || (deviceProtectedDataDir != null && EXISTENCE_CACHE.exists(deviceProtectedDataDir, fresh));
+
+        // Installed (or hidden): hasApk && hasData
+        // Uninstalled but keep data: !hasApk && hasData
+        // Installed in other users only: hasApk && !hasData
+        return hasApk && hasData;
+    }
+
+    /**
+     * Configured uids are always listed, unconfigured ones only if they are installed apps or shell.
+     */
+    static boolean isListed(int uid, int flags, boolean installed) {
+        if (flags != 0) {
+            return true;
         }
-        return 0;
+        return (uid == 2000 || UserHandleCompat.getAppId(uid) >= 10000) && installed;
     }
 
     public static ParcelableListSlice<AppInfo> build(
-            SuiConfigManager configManager, int systemUiUid, int userId, boolean onlyShizuku) {
+            SuiConfigManager configManager,
+            ShizukuRequesterIndex requesterIndex,
+            int systemUiUid,
+            int userId,
+            boolean onlyShizuku) {
 
         int defaultPermissionFlags = configManager.getDefaultPermissionFlags();
         List<Integer> users = new ArrayList<>();
@@ -110,86 +222,32 @@ public class AppListBuilder {
             users.add(userId);
         }
 
-        Map<String, Boolean> existenceCache = new ArrayMap<>();
-        List<AppInfo> list = new ArrayList<>();
-        int installedBaseFlags = 0x00002000 /*MATCH_UNINSTALLED_PACKAGES*/ | PackageManager.GET_PERMISSIONS;
-
-        for (int user : users) {
-            List<PackageInfo> packages = PackageManagerApis.getInstalledPackagesNoThrow(installedBaseFlags, user);
-            if (packages.isEmpty()) {
-                LOGGER.w(
-                        "AppListBuilder: PackageManagerApis.getInstalledPackagesNoThrow returned 0 packages for user %d",
-                        user);
-                packages = getInstalledPackagesFallback(installedBaseFlags, user);
-            }
-
+        if (onlyShizuku) {
+            requesterIndex.prepare(users);
+        }
+        List<List<AppInfo>> perUser = forEachUser(users, user -> {
+            long start = SystemClock.elapsedRealtime();
+            List<PackageInfo> packages = getInstalledPackages(0x00002000 /*MATCH_UNINSTALLED_PACKAGES*/, user);
+            List<AppInfo> userList = new ArrayList<>();
             for (PackageInfo pi : packages) {
                 try {
-                    if (pi.applicationInfo == null
-                            || Refine.<PackageInfoHidden>unsafeCast(pi).overlayTarget != null
-                            || (pi.applicationInfo.flags & ApplicationInfo.FLAG_HAS_CODE) == 0) {
+                    if (!isCandidate(pi, systemUiUid)) {
                         continue;
                     }
 
                     int uid = pi.applicationInfo.uid;
-
-                    if (onlyShizuku) {
-                        boolean explicitlyAllowed = false;
-                        SuiConfig.PackageEntry explicitEntry = configManager.findExplicit(uid);
-                        if (explicitEntry != null && (explicitEntry.isAllowed() || explicitEntry.isAllowedShell())) {
-                            explicitlyAllowed = true;
-                        }
-
-                        if (!explicitlyAllowed) {
-                            if (pi.requestedPermissions == null) {
-                                continue;
-                            }
-                            boolean requested = false;
-                            for (String p : pi.requestedPermissions) {
-                                if ("moe.shizuku.manager.permission.API_V23".equals(p)) {
-                                    requested = true;
-                                    break;
-                                }
-                            }
-                            if (!requested) {
-                                continue;
-                            }
-                        }
-                    }
-
-                    int appId = UserHandleCompat.getAppId(uid);
-                    if (uid == systemUiUid) {
+                    SuiConfig.PackageEntry entry = configManager.findExplicit(uid);
+                    if (onlyShizuku
+                            && !requesterIndex.isRequester(pi.packageName, user)
+                            && (entry == null || !(entry.isAllowed() || entry.isAllowedShell()))) {
                         continue;
                     }
 
-                    int flags = getFlagsForUidInternal(configManager, uid, SuiConfig.MASK_PERMISSION);
-                    if (flags == 0 && uid != 2000 && appId < 10000) {
+                    int flags = entry != null ? entry.flags & SuiConfig.MASK_PERMISSION : 0;
+                    if (!isListed(uid, flags, flags != 0 || isInstalled(pi.applicationInfo, false))) {
                         continue;
                     }
 
-                    if (flags == 0) {
-                        final String sourceDir = pi.applicationInfo.sourceDir;
-                        final String dataDir = pi.applicationInfo.dataDir;
-                        final String deviceProtectedDataDir = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
-                                ? pi.applicationInfo.deviceProtectedDataDir
-                                : null;
-                        boolean hasApk = sourceDir != null
-                                && MapUtil.getOrPut(existenceCache, sourceDir, () -> new File(sourceDir).exists());
-                        boolean hasData = (dataDir != null
-                                        && MapUtil.getOrPut(existenceCache, dataDir, () -> new File(dataDir).exists()))
-                                || (deviceProtectedDataDir != null
-                                        && MapUtil.getOrPut(existenceCache, deviceProtectedDataDir, () -> new File(
-                                                        deviceProtectedDataDir)
-                                                .exists()));
-
-                        // Installed (or hidden): hasApk && hasData
-                        // Uninstalled but keep data: !hasApk && hasData
-                        // Installed in other users only: hasApk && !hasData
-                        if (!(hasApk && hasData)) {
-                            continue;
-                        }
-                    }
-
                     pi.activities = null;
                     pi.receivers = null;
                     pi.services = null;
@@ -199,11 +257,22 @@ public class AppListBuilder {
                     item.packageInfo = pi;
                     item.flags = flags;
                     item.defaultFlags = defaultPermissionFlags;
-                    list.add(item);
+                    userList.add(item);
                 } catch (Throwable e) {
                     LOGGER.w(e, "Error processing package %d %s", user, pi.packageName);
                 }
             }
+            LOGGER.i(
+                    "AppListBuilder: listed %d of %d packages of user %d in %d ms",
+                    userList.size(), packages.size(), user, SystemClock.elapsedRealtime() - start);
+            return userList;
+        });
+
+        List<AppInfo> list = new ArrayList<>();
+        for (List<AppInfo> userList : perUser) {
+            if (userList != null) {
+                list.addAll(userList);
+            }
         }
         return new ParcelableListSlice<>(list);
     }
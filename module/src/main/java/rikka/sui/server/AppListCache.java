@@ -0,0 +1,449 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.server;
+
+import static rikka.sui.server.ServerConstants.LOGGER;
+
+import android.content.pm.PackageInfo;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import rikka.hidden.compat.PackageManagerApis;
+import rikka.hidden.compat.UserManagerApis;
+import rikka.sui.model.AppListChanges;
+import rikka.sui.model.AppListPage;
+import rikka.sui.model.AppListQuery;
+import rikka.sui.model.CompactAppInfo;
+
+/**
+ * App list maintained across queries for the management UI.
+ *
+ * <p>Users are enumerated once, after that only packages reported by {@link #invalidatePackage} are
+ * queried again. Config changes are picked up by re-applying the flags on every query, which needs
+ * no package manager call. Every row that changes is stamped with a new generation, so a client can
+ * ask for the changes since the generation it has seen.
+ */
+public class AppListCache {
+
+    // Requested permissions come from ShizukuRequesterIndex, no GET_PERMISSIONS here.
+    private static final int PACKAGE_QUERY_FLAGS = 0x00002000 /*MATCH_UNINSTALLED_PACKAGES*/;
+    // Removed rows are kept so clients learn about the removal, drop them once there are too many.
+    private static final int MAX_REMOVED_ROWS = 256;
+    private static final int MAX_PAGE_SIZE = 500;
+
+    // A package as queried from a worker thread, before it is merged into the rows.
+    private static final class LoadedPackage {
+        final PackageInfo pi;
+        final boolean installed;
+        final int attributes;
+
+        LoadedPackage(PackageInfo pi, boolean installed, int attributes) {
+            this.pi = pi;
+            this.installed = installed;
+            this.attributes = attributes;
+        }
+    }
+
+    private static final class Row {
+        CompactAppInfo info;
+        boolean installed;
+        boolean listed;
+        boolean removed;
+        long generation;
+    }
+
+    private final SuiConfigManager configManager;
+    private final ShizukuRequesterIndex requesterIndex;
+    private final int systemUiUid;
+
+    // userId -> packageName -> row, all guarded by this.
+    private final SparseArray<ArrayMap<String, Row>> rows = new SparseArray<>();
+    // userId -> packages to query again on the next refresh.
+    private final SparseArray<ArraySet<String>> dirtyPackages = new SparseArray<>();
+    // Generations start from a random positive epoch in the upper 32 bits, so a client that outlives
+    // a server restart never sees a generation it has seen before, it gets a reset instead. 0 stays
+    // free for "all rows".
+    private long generation = (((long) (new Random().nextInt() >>> 1)) << 32) | 1L;
+    // Clients older than this generation may have missed a dropped row.
+    private long floorGeneration = generation;
+    private boolean stamped;
+    private int removedRows;
+
+    // Sorted snapshot the pages of the last paged query are cut from.
+    private List<CompactAppInfo> sorted;
+    private long sortedGeneration;
+    private AppListQuery sortedQuery;
+
+    public AppListCache(SuiConfigManager configManager, ShizukuRequesterIndex requesterIndex, int systemUiUid) {
+        this.configManager = configManager;
+        this.requesterIndex = requesterIndex;
+        this.systemUiUid = systemUiUid;
+    }
+
+    /**
+     * Marks packageName of userId out of date, userId -1 for all users.
+     */
+    public synchronized void invalidatePackage(@NonNull String packageName, int userId) {
+        if (userId == -1) {
+            for (int i = 0; i < rows.size(); i++) {
+                markDirtyLocked(rows.keyAt(i), packageName);
+            }
+        } else if (rows.get(userId) != null) {
+            markDirtyLocked(userId, packageName);
+        }
+    }
+
+    private void markDirtyLocked(int userId, String packageName) {
+        ArraySet<String> packages = dirtyPackages.get(userId);
+        if (packages == null) {
+            packages = new ArraySet<>();
+            dirtyPackages.put(userId, packages);
+        }
+        packages.add(packageName);
+    }
+
+    /**
+     * Returns the rows matching query that changed after sinceGeneration, or all of them if
+     * sinceGeneration is 0 or too old. Rows that changed and no longer match are reported as removed,
+     * so a client must start over from 0 when its query changes.
+     */
+    @NonNull public synchronized AppListChanges getChanges(long sinceGeneration, @NonNull AppListQuery query) {
+        long start = SystemClock.elapsedRealtime();
+        refreshLocked(query.userIds);
+
+        AppListChanges changes = new AppListChanges();
+        changes.generation = generation;
+        changes.reset = sinceGeneration < floorGeneration || sinceGeneration > generation;
+
+        List<CompactAppInfo> changed = new ArrayList<>();
+        List<CompactAppInfo> removed = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            if (!query.matchesUser(rows.keyAt(i))) {
+                continue;
+            }
+            ArrayMap<String, Row> userRows = rows.valueAt(i);
+            for (int j = 0; j < userRows.size(); j++) {
+                Row row = userRows.valueAt(j);
+                if (!changes.reset && row.generation <= sinceGeneration) {
+                    continue;
+                }
+                if (row.listed && query.matches(row.info)) {
+                    changed.add(row.info);
+                } else if (!changes.reset) {
+                    removed.add(row.info);
+                }
+            }
+        }
+
+        changes.changed = changed;
+        changes.removedUids = new int[removed.size()];
+        changes.removedPackages = new String[removed.size()];
+        for (int i = 0; i < removed.size(); i++) {
+            changes.removedUids[i] = removed.get(i).uid;
+            changes.removedPackages[i] = removed.get(i).packageName;
+        }
+
+        LOGGER.d(
+                "app list changes since %d: generation=%d, reset=%b, changed=%d, removed=%d, took %d ms",
+                sinceGeneration,
+                generation,
+                changes.reset,
+                changed.size(),
+                removed.size(),
+                SystemClock.elapsedRealtime() - start);
+        return changes;
+    }
+
+    /**
+     * Returns limit rows matching query starting at offset, sorted by {@link #RELEVANCE}.
+     *
+     * <p>The first page (generation 0) refreshes the list and cuts a sorted snapshot, later pages
+     * with the generation of the first one are served from that snapshot. If the snapshot is gone,
+     * the returned page starts at offset 0 of a new one.
+     */
+    @NonNull public synchronized AppListPage getPage(
+            long pageGeneration, int offset, int limit, @NonNull AppListQuery query) {
+        boolean sameQuery = sorted != null && query.equals(sortedQuery);
+        if (pageGeneration == 0 || !sameQuery || pageGeneration != sortedGeneration) {
+            refreshLocked(query.userIds);
+            if (!sameQuery || sortedGeneration != generation) {
+                sortLocked(query);
+            }
+            if (pageGeneration != 0) {
+                offset = 0;
+            }
+        }
+
+        offset = Math.max(0, Math.min(offset, sorted.size()));
+        int end = Math.min(sorted.size(), offset + Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+
+        AppListPage page = new AppListPage();
+        page.generation = sortedGeneration;
+        page.offset = offset;
+        page.total = sorted.size();
+        page.rows = new ArrayList<>(sorted.subList(offset, end));
+        return page;
+    }
+
+    private void sortLocked(AppListQuery query) {
+        List<CompactAppInfo> list = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            if (!query.matchesUser(rows.keyAt(i))) {
+                continue;
+            }
+            ArrayMap<String, Row> userRows = rows.valueAt(i);
+            for (int j = 0; j < userRows.size(); j++) {
+                Row row = userRows.valueAt(j);
+                if (row.listed && query.matches(row.info)) {
+                    list.add(row.info);
+                }
+            }
+        }
+        Collections.sort(list, RELEVANCE);
+
+        sorted = list;
+        sortedGeneration = generation;
+        sortedQuery = query;
+    }
+
+    /**
+     * The order of the management UI, see {@link CompactAppInfo#getListRank}.
+     */
+    private static final Comparator<CompactAppInfo> RELEVANCE = (o1, o2) -> {
+        int c = Integer.compare(
+                CompactAppInfo.getListRank(o1.flags, o1.attributes),
+                CompactAppInfo.getListRank(o2.flags, o2.attributes));
+        if (c != 0) return c;
+        c = o1.packageName.compareTo(o2.packageName);
+        if (c != 0) return c;
+        return Integer.compare(o1.uid, o2.uid);
+    };
+
+    /**
+     * Brings the rows of userIds (null for all users) up to date.
+     */
+    private void refreshLocked(@Nullable int[] userIds) {
+        List<Integer> users = new ArrayList<>();
+        if (userIds == null) {
+            users.addAll(UserManagerApis.getUserIdsNoThrow());
+        } else {
+            for (int userId : userIds) {
+                users.add(userId);
+            }
+        }
+
+        int defaultFlags = configManager.getDefaultPermissionFlags();
+
+        if (userIds == null) {
+            for (int i = 0; i < rows.size(); i++) {
+                if (!users.contains(rows.keyAt(i)) && !isRemovedUserLocked(rows.valueAt(i))) {
+                    LOGGER.i("user %d is gone, removing its apps from the list", rows.keyAt(i));
+                    ArrayMap<String, Row> userRows = rows.valueAt(i);
+                    for (int j = 0; j < userRows.size(); j++) {
+                        markRemovedLocked(userRows.valueAt(j));
+                    }
+                    dirtyPackages.remove(rows.keyAt(i));
+                }
+            }
+        }
+
+        List<Integer> usersToLoad = new ArrayList<>();
+        for (int user : users) {
+            ArrayMap<String, Row> userRows = rows.get(user);
+            if (userRows == null || isRemovedUserLocked(userRows)) {
+                usersToLoad.add(user);
+                continue;
+            }
+
+            ArraySet<String> dirty = dirtyPackages.get(user);
+            if (dirty == null) {
+                continue;
+            }
+            dirtyPackages.remove(user);
+            for (String packageName : dirty) {
+                PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PACKAGE_QUERY_FLAGS, user);
+                if (pi != null && AppListBuilder.isCandidate(pi, systemUiUid)) {
+                    updateRowLocked(userRows, loadPackage(pi, user, true), defaultFlags);
+                } else {
+                    Row row = userRows.get(packageName);
+                    if (row != null) {
+                        markRemovedLocked(row);
+                    }
+                }
+            }
+        }
+
+        if (!usersToLoad.isEmpty()) {
+            // Users are enumerated in parallel, they only touch the rows when merged in the order of users.
+            requesterIndex.prepare(usersToLoad);
+            List<List<LoadedPackage>> loaded = AppListBuilder.forEachUser(usersToLoad, this::loadUser);
+            for (int i = 0; i < usersToLoad.size(); i++) {
+                if (loaded.get(i) != null) {
+                    mergeUserLocked(usersToLoad.get(i), loaded.get(i), defaultFlags);
+                }
+            }
+        }
+
+        // Config changes do not invalidate anything, re-apply the flags of every row instead.
+        for (int i = 0; i < rows.size(); i++) {
+            ArrayMap<String, Row> userRows = rows.valueAt(i);
+            for (int j = 0; j < userRows.size(); j++) {
+                Row row = userRows.valueAt(j);
+                if (!row.removed) {
+                    applyFlagsLocked(row, row.info, defaultFlags);
+                }
+            }
+        }
+
+        if (removedRows > MAX_REMOVED_ROWS) {
+            pruneRemovedLocked();
+        }
+        if (stamped) {
+            generation++;
+            stamped = false;
+        }
+    }
+
+    private static boolean isRemovedUserLocked(ArrayMap<String, Row> userRows) {
+        for (int i = 0; i < userRows.size(); i++) {
+            if (!userRows.valueAt(i).removed) {
+                return false;
+            }
+        }
+        return !userRows.isEmpty();
+    }
+
+    /**
+     * Queries the packages of user, runs on a worker thread without the lock. Returns null if the
+     * query failed, the user is tried again on the next refresh.
+     */
+    @Nullable private List<LoadedPackage> loadUser(int user) {
+        long start = SystemClock.elapsedRealtime();
+        List<PackageInfo> packages = AppListBuilder.getInstalledPackages(PACKAGE_QUERY_FLAGS, user);
+        if (packages.isEmpty()) {
+            return null;
+        }
+
+        List<LoadedPackage> loaded = new ArrayList<>(packages.size());
+        for (PackageInfo pi : packages) {
+            try {
+                if (AppListBuilder.isCandidate(pi, systemUiUid)) {
+                    loaded.add(loadPackage(pi, user, false));
+                }
+            } catch (Throwable e) {
+                LOGGER.w(e, "Error processing package %d %s", user, pi.packageName);
+            }
+        }
+        LOGGER.i(
+                "loaded %d packages of user %d in %d ms",
+                packages.size(), user, SystemClock.elapsedRealtime() - start);
+        return loaded;
+    }
+
+    private LoadedPackage loadPackage(PackageInfo pi, int user, boolean fresh) {
+        boolean installed = AppListBuilder.isInstalled(pi.applicationInfo, fresh);
+        int attributes =
+                requesterIndex.isRequester(pi.packageName, user) ? CompactAppInfo.ATTR_SHIZUKU_REQUESTER : 0;
+        return new LoadedPackage(pi, installed, attributes);
+    }
+
+    private void mergeUserLocked(int user, List<LoadedPackage> loaded, int defaultFlags) {
+        ArrayMap<String, Row> userRows = rows.get(user);
+        if (userRows == null) {
+            userRows = new ArrayMap<>(loaded.size());
+            rows.put(user, userRows);
+        }
+        dirtyPackages.remove(user);
+
+        for (LoadedPackage lp : loaded) {
+            updateRowLocked(userRows, lp, defaultFlags);
+        }
+    }
+
+    private void updateRowLocked(ArrayMap<String, Row> userRows, LoadedPackage lp, int defaultFlags) {
+        Row row = userRows.get(lp.pi.packageName);
+        if (row == null) {
+            row = new Row();
+            userRows.put(lp.pi.packageName, row);
+        } else if (row.removed) {
+            row.removed = false;
+            removedRows--;
+        }
+
+        row.installed = lp.installed;
+        applyFlagsLocked(row, CompactAppInfo.from(lp.pi, 0, 0, lp.attributes), defaultFlags);
+    }
+
+    private void applyFlagsLocked(Row row, CompactAppInfo info, int defaultFlags) {
+        int flags = configManager.getExplicitFlags(info.uid) & SuiConfig.MASK_PERMISSION;
+        boolean listed = AppListBuilder.isListed(info.uid, flags, row.installed);
+        // A new info means the package itself changed, the row is stamped even if its flags did not.
+        if (info != row.info || info.flags != flags || info.defaultFlags != defaultFlags) {
+            row.info = info.withFlags(flags, defaultFlags);
+        } else if (listed == row.listed) {
+            return;
+        }
+        if (listed || row.listed) {
+            stampLocked(row);
+        }
+        row.listed = listed;
+    }
+
+    private void markRemovedLocked(Row row) {
+        if (row.removed) {
+            return;
+        }
+        row.removed = true;
+        removedRows++;
+        if (row.listed) {
+            stampLocked(row);
+        }
+        row.listed = false;
+    }
+
+    private void stampLocked(Row row) {
+        row.generation = generation + 1;
+        stamped = true;
+    }
+
+    private void pruneRemovedLocked() {
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            ArrayMap<String, Row> userRows = rows.valueAt(i);
+            for (int j = userRows.size() - 1; j >= 0; j--) {
+                if (userRows.valueAt(j).removed) {
+                    userRows.removeAt(j);
+                }
+            }
+            if (userRows.isEmpty()) {
+                rows.removeAt(i);
+            }
+        }
+        removedRows = 0;
+        floorGeneration = stamped ? generation + 1 : generation;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.server;
+
+import static rikka.sui.server.ServerConstants.LOGGER;
+
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped log of fixed size uid records.
+ *
+ * <p>The file is a 16 bytes header followed by 16 bytes records of (uid, flags, op, crc32 of the
+ * first 12 bytes). Loading replays records until the first one whose checksum does not match, which
+ * is where the last write was torn or where the unused, zero filled space starts. A full log is grown
+ * in place; once it is much larger than the live entries, {@link #maintain()} compacts it into a new
+ * file that replaces the old one.
+ *
+ * <p>While the log is in use, it is the only copy of the policy: sui.db is read once, to migrate
+ * from it, and is not written again until {@link #exportTo} hands the policy back.
+ */
+final class MappedPolicyStore implements PolicyStore {
+
+    private static final int MAGIC = 0x53554950; // "SUIP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 16;
+    private static final int OP_SET = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int MIN_CAPACITY = 4096;
+    private static final int COMPACT_THRESHOLD = 1024;
+
+    private final File file;
+    private final SqlitePolicyStore legacy;
+    private final SparseIntArray live = new SparseIntArray();
+    private final CRC32 crc = new CRC32();
+    private final byte[] crcBuffer = new byte[12];
+
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+
+    /**
+     * @param legacy store to migrate from when the log does not exist yet
+     */
+    MappedPolicyStore(@NonNull File file, @NonNull SqlitePolicyStore legacy) {
+        this.file = file;
+        this.legacy = legacy;
+    }
+
+    @Nullable @Override
+    public synchronized SuiConfig read() {
+        try {
+            openLocked();
+        } catch (IOException e) {
+            LOGGER.e(e, "open policy log %s", file);
+            return null;
+        }
+
+        SuiConfig config = new SuiConfig();
+        for (int i = 0; i < live.size(); i++) {
+            config.packages.add(new SuiConfig.PackageEntry(live.keyAt(i), live.valueAt(i)));
+        }
+        return config;
+    }
+
+    @Override
+    public synchronized void write(@NonNull SparseLongArray batch) throws IOException {
+        openLocked();
+
+        if (count + batch.size() > capacity) {
+            growLocked(count + batch.size());
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            int uid = batch.keyAt(i);
+            long value = batch.valueAt(i);
+            if (value == REMOVED) {
+                putRecord(buffer, count++, uid, 0, OP_REMOVE);
+            } else {
+                putRecord(buffer, count++, uid, (int) value, OP_SET);
+            }
+            applyLocked(uid, value);
+        }
+    }
+
+    @Override
+    public synchronized void sync() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Compacts the log once it is mostly superseded records.
+     */
+    @Override
+    public synchronized void maintain() throws IOException {
+        if (buffer != null && count >= COMPACT_THRESHOLD && count > live.size() * 4) {
+            compactLocked();
+        }
+    }
+
+    /**
+     * Replaces the contents of target with the policy in the log and deletes the log, so that
+     * target is the only copy again. If this throws, the log is still the one to use.
+     */
+    synchronized void exportTo(@NonNull SqlitePolicyStore target) throws IOException {
+        openLocked();
+        target.replaceAll(live);
+        target.sync();
+        buffer = null;
+        if (!file.delete()) {
+            throw new IOException("delete " + file + " failed");
+        }
+        LOGGER.i("exported %d uid configs from policy log %s", live.size(), file);
+    }
+
+    private void applyLocked(int uid, long value) {
+        if (value == REMOVED) {
+            live.delete(uid);
+        } else {
+            live.put(uid, (int) value);
+        }
+    }
+
+    private void openLocked() throws IOException {
+        if (buffer != null) {
+            return;
+        }
+
+        if (!file.exists()) {
+            migrateLocked();
+            return;
+        }
+
+        mapLocked();
+        replayLocked();
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            // sui.db is stale by now, so keep what the records still hold rather than migrating from it
+            // again. The file is kept for inspection.
+            buffer = null;
+            File corrupt = new File(file.getPath() + ".corrupt");
+            if (!file.renameTo(corrupt)) {
+                throw new IOException("policy log " + file + " has a bad header and cannot be moved aside");
+            }
+            LOGGER.e("policy log %s has a bad header, salvaged %d uid configs, moved to %s", file, count, corrupt);
+            compactLocked();
+            return;
+        }
+
+        // Records after a torn one may have reached the disk before it did. Clear them, otherwise they
+        // would come back once the torn record is overwritten by a later append.
+        boolean dirty = false;
+        for (int offset = HEADER_SIZE + count * RECORD_SIZE; offset < buffer.capacity(); offset += 4) {
+            if (buffer.getInt(offset) != 0) {
+                buffer.putInt(offset, 0);
+                dirty = true;
+            }
+        }
+        if (dirty) {
+            LOGGER.w("policy log %s recovered after %d records", file, count);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Loads the live entries from the records up to the first bad one, which is left at count.
+     */
+    private void replayLocked() {
+        live.clear();
+        for (count = 0; count < capacity; count++) {
+            int offset = HEADER_SIZE + count * RECORD_SIZE;
+            int uid = buffer.getInt(offset);
+            int flags = buffer.getInt(offset + 4);
+            int op = buffer.getInt(offset + 8);
+            if (buffer.getInt(offset + 12) != checksum(uid, flags, op)) {
+                break;
+            }
+            if (op == OP_SET) {
+                live.put(uid, flags);
+            } else if (op == OP_REMOVE) {
+                live.delete(uid);
+            }
+        }
+    }
+
+    private void migrateLocked() throws IOException {
+        live.clear();
+        if (legacy.exists()) {
+            SuiConfig config = legacy.read();
+            if (config != null) {
+                for (SuiConfig.PackageEntry entry : config.packages) {
+                    live.put(entry.uid, entry.flags);
+                }
+                LOGGER.i("migrating %d uid configs to policy log", live.size());
+            }
+        }
+        compactLocked();
+    }
+
+    /**
+     * Rewrites the log with only the live entries and maps the new file.
+     */
+    private void compactLocked() throws IOException {
+        int newCapacity = MIN_CAPACITY;
+        while (newCapacity < live.size() * 2) {
+            newCapacity <<= 1;
+        }
+
+        // Until the new file is in place, a failure leaves the store unopened so the next call reloads it.
+        buffer = null;
+        File tmp = new File(file.getPath() + ".tmp");
+        MappedByteBuffer newBuffer;
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+                FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + (long) newCapacity * RECORD_SIZE);
+            newBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+        newBuffer.putInt(0, MAGIC);
+        newBuffer.putInt(4, VERSION);
+        for (int i = 0; i < live.size(); i++) {
+            putRecord(newBuffer, i, live.keyAt(i), live.valueAt(i), OP_SET);
+        }
+        newBuffer.force();
+
+        if (!tmp.renameTo(file)) {
+            throw new IOException("rename " + tmp + " to " + file + " failed");
+        }
+        buffer = newBuffer;
+        capacity = newCapacity;
+        count = live.size();
+        LOGGER.d("policy log compacted to %d records", count);
+    }
+
+    /**
+     * Extends the file so that it holds at least required records and maps it again. The new space is
+     * zero filled, which replay reads as the end of the log.
+     */
+    private void growLocked(int required) throws IOException {
+        int newCapacity = capacity;
+        while (newCapacity < required) {
+            newCapacity <<= 1;
+        }
+
+        buffer.force();
+        buffer = null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel()) {
+            raf.setLength(HEADER_SIZE + (long) newCapacity * RECORD_SIZE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+        capacity = newCapacity;
+        LOGGER.d("policy log grown to %d records", capacity);
+    }
+
+    private void mapLocked() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel()) {
+            long length = raf.length();
+            if (length < HEADER_SIZE + (long) MIN_CAPACITY * RECORD_SIZE) {
+                length = HEADER_SIZE + (long) MIN_CAPACITY * RECORD_SIZE;
+                raf.setLength(length);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            capacity = (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+        }
+    }
+
+    private void putRecord(MappedByteBuffer target, int index, int uid, int flags, int op) {
+        int offset = HEADER_SIZE + index * RECORD_SIZE;
+        target.putInt(offset, uid);
+        target.putInt(offset + 4, flags);
+        target.putInt(offset + 8, op);
+        target.putInt(offset + 12, checksum(uid, flags, op));
+    }
+
+    private int checksum(int uid, int flags, int op) {
+        putInt(crcBuffer, 0, uid);
+        putInt(crcBuffer, 4, flags);
+        putInt(crcBuffer, 8, op);
+        crc.reset();
+        crc.update(crcBuffer, 0, crcBuffer.length);
+        return (int) crc.getValue();
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
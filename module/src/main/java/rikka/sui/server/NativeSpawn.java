@@ -0,0 +1,185 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.server;
+
+import static rikka.sui.server.ServerConstants.LOGGER;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+import androidx.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Starts app_process with vfork and execve from libsui_spawn.so, argv and environment are built here
+ * instead of going through a shell command line.
+ */
+final class NativeSpawn {
+
+    private static final String LIBRARY_NAME = "libsui_spawn.so";
+    private static final boolean AVAILABLE = load();
+
+    private static final int ECHILD = 10;
+    // How long to wait for the owner of an exited child that is not ours to reap it.
+    private static final long FOREIGN_CHILD_DELAY_MS = 10;
+
+    // Spawned processes are our children now, one thread reaps them so they don't stay zombies.
+    // pid -> nice name, guarded by itself.
+    private static final SparseArray<String> children = new SparseArray<>();
+    private static Thread reaper;
+
+    private NativeSpawn() {}
+
+    private static boolean load() {
+        String libraryPath = System.getProperty("sui.library.path");
+        if (libraryPath == null) {
+            return false;
+        }
+        try {
+            System.load(libraryPath + "/" + LIBRARY_NAME);
+            return true;
+        } catch (Throwable e) {
+            LOGGER.w(e, "load %s", LIBRARY_NAME);
+            return false;
+        }
+    }
+
+    private static native int nativeSpawn(String file, String[] argv, String[] envp);
+
+    private static native int nativeWaitExited();
+
+    private static native int nativeReap(int pid);
+
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Spawns {@code appProcess vmArgs /system/bin --nice-name=niceName mainClass args} with
+     * CLASSPATH and extraEnv added to the server's environment and stdio on /dev/null.
+     *
+     * @return pid of the process, or a negative errno
+     */
+    static int spawnAppProcess(
+            @NonNull String appProcess,
+            @NonNull String classPath,
+            @NonNull List<String> vmArgs,
+            @NonNull String niceName,
+            @NonNull String mainClass,
+            @NonNull List<String> args,
+            @NonNull Map<String, String> extraEnv) {
+        if (!AVAILABLE) {
+            return -38; // ENOSYS
+        }
+
+        List<String> argv = new ArrayList<>();
+        argv.add(appProcess);
+        argv.addAll(vmArgs);
+        argv.add("/system/bin");
+        argv.add("--nice-name=" + niceName);
+        argv.add(mainClass);
+        argv.addAll(args);
+
+        List<String> envp = new ArrayList<>();
+        for (Map.Entry<String, String> entry : System.getenv().entrySet()) {
+            String key = entry.getKey();
+            if (!key.equals("CLASSPATH") && !extraEnv.containsKey(key)) {
+                envp.add(key + "=" + entry.getValue());
+            }
+        }
+        envp.add("CLASSPATH=" + classPath);
+        for (Map.Entry<String, String> entry : extraEnv.entrySet()) {
+            envp.add(entry.getKey() + "=" + entry.getValue());
+        }
+
+        // Held until the pid is recorded, so the reaper always finds the name of what it reaped.
+        synchronized (children) {
+            int pid = nativeSpawn(appProcess, argv.toArray(new String[0]), envp.toArray(new String[0]));
+            if (pid > 0) {
+                children.put(pid, niceName);
+                if (reaper == null) {
+                    reaper = new Thread(NativeSpawn::reap, "sui-spawn-reaper");
+                    reaper.setDaemon(true);
+                    reaper.start();
+                }
+                children.notifyAll();
+            }
+            return pid;
+        }
+    }
+
+    /**
+     * Reaps the children spawned here. waitid with WNOWAIT tells which child exited without reaping
+     * it, so children started with Runtime.exec are left to libcore and keep their exit status.
+     */
+    private static void reap() {
+        while (true) {
+            int[] recorded;
+            synchronized (children) {
+                recorded = new int[children.size()];
+                for (int i = 0; i < recorded.length; i++) {
+                    recorded[i] = children.keyAt(i);
+                }
+            }
+            int pid = nativeWaitExited();
+            if (pid == -ECHILD) {
+                synchronized (children) {
+                    // Those were reaped by someone else, as libcore does on Android 6. Children spawned
+                    // since the snapshot are kept.
+                    for (int recordedPid : recorded) {
+                        children.remove(recordedPid);
+                    }
+                    // No children left, sleep until the next one is spawned.
+                    while (children.size() == 0) {
+                        try {
+                            children.wait();
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                }
+                continue;
+            }
+            if (pid < 0) {
+                LOGGER.w("waitid failed with %d", -pid);
+                SystemClock.sleep(FOREIGN_CHILD_DELAY_MS);
+                continue;
+            }
+
+            String niceName;
+            synchronized (children) {
+                niceName = children.get(pid);
+            }
+            if (niceName == null) {
+                // Not ours, its owner reaps it shortly. Until then waitid keeps returning it.
+                SystemClock.sleep(FOREIGN_CHILD_DELAY_MS);
+                continue;
+            }
+
+            int status = nativeReap(pid);
+            synchronized (children) {
+                children.remove(pid);
+            }
+            if (status >= 0) {
+                LOGGER.i("%s (%d) exited with status 0x%x", niceName, pid, status);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.server;
+
+import android.os.SystemClock;
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * File.exists results shared by all app list queries and their worker threads. A result is reused
+ * for {@link #MAX_AGE_MS}, callers that know a path just changed pass fresh to check it again.
+ */
+final class PathExistenceCache {
+
+    private static final long MAX_AGE_MS = 30 * 1000;
+    private static final int PRUNE_THRESHOLD = 4096;
+
+    private static final class Entry {
+        final boolean exists;
+        final long checkedAt;
+
+        Entry(boolean exists, long checkedAt) {
+            this.exists = exists;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    boolean exists(String path, boolean fresh) {
+        long now = SystemClock.elapsedRealtime();
+        if (!fresh) {
+            Entry entry = entries.get(path);
+            if (entry != null && now - entry.checkedAt < MAX_AGE_MS) {
+                return entry.exists;
+            }
+        }
+
+        boolean exists = new File(path).exists();
+        entries.put(path, new Entry(exists, now));
+        if (entries.size() > PRUNE_THRESHOLD) {
+            prune(now);
+        }
+        return exists;
+    }
+
+    private void prune(long now) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().checkedAt >= MAX_AGE_MS) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.server;
+
+import android.util.SparseLongArray;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Persistent uid -> flags storage used by {@link SuiDatabase}.
+ */
+interface PolicyStore {
+
+    /**
+     * Value of a batch entry whose uid should be removed. Other values are the flags as an unsigned int.
+     */
+    long REMOVED = Long.MIN_VALUE;
+
+    @Nullable SuiConfig read();
+
+    void write(@NonNull SparseLongArray batch) throws Exception;
+
+    /**
+     * Makes everything written so far durable.
+     */
+    void sync();
+
+    /**
+     * Does deferred work such as compaction, called on the writer thread once writes have settled.
+     */
+    void maintain() throws Exception;
+}
@@ -36,4 +36,8 @@ public class ServerConstants {
     public static final int BINDER_TRANSACTION_getShortcutToken = 10009;
     public static final int BINDER_TRANSACTION_requestPermissionFromShell = 10010;
     public static final int BINDER_TRANSACTION_reloadShellConfig = 10011;
+    public static final int BINDER_TRANSACTION_updateFlagsForUids = 10012;
+    public static final int BINDER_TRANSACTION_getApplicationsCompact = 10013;
+    public static final int BINDER_TRANSACTION_getApplicationChanges = 10014;
+    public static final int BINDER_TRANSACTION_getApplicationsPage = 10015;
 }
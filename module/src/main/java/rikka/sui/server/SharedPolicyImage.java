@@ -0,0 +1,296 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.server;
+
+import static rikka.sui.server.ServerConstants.LOGGER;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.SparseArray;
+import androidx.annotation.NonNull;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Binary uid -> flags image shared by the root server (writer) and the shell server (reader).
+ *
+ * <p>The file is a 24 bytes header (magic, version, sequence, count, crc32 of entries, reserved)
+ * followed by (uid, flags) entries sorted by uid. The writer updates it in place with positional
+ * writes, making the sequence odd before and even again after the entries change. The reader maps
+ * it read-only, and only copies the entries out again once the sequence has moved. The file is only
+ * replaced, by rename, when it has to grow.
+ */
+final class SharedPolicyImage {
+
+    static final String FILENAME = "sui_uids.bin";
+
+    private static final int MAGIC = 0x53554955; // "SUIU"
+    private static final int VERSION = 1;
+    private static final int OFFSET_SEQUENCE = 8;
+    private static final int OFFSET_COUNT = 12;
+    private static final int HEADER_SIZE = 24;
+    private static final int ENTRY_SIZE = 8;
+    private static final int MIN_CAPACITY = 1024;
+    private static final int MAX_READ_ATTEMPTS = 1000;
+
+    private static final class Entries {
+
+        static final Entries EMPTY = new Entries(-1, new int[0], new int[0]);
+
+        final int sequence;
+        final int[] uids;
+        final int[] flags;
+
+        Entries(int sequence, int[] uids, int[] flags) {
+            this.sequence = sequence;
+            this.uids = uids;
+            this.flags = flags;
+        }
+    }
+
+    private final File file;
+    private volatile MappedByteBuffer buffer;
+    private volatile Entries entries = Entries.EMPTY;
+    // Sequence a refresh gave up on, lookups do not retry it until the writer moves on.
+    private volatile int failedSequence = -1;
+
+    SharedPolicyImage(@NonNull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the flags of uid, or 0 if uid is not in the image.
+     */
+    int getFlags(int uid) {
+        Entries current = current();
+        int index = Arrays.binarySearch(current.uids, uid);
+        return index >= 0 ? current.flags[index] : 0;
+    }
+
+    @NonNull int[] getUidsByFlag(int flag) {
+        Entries current = current();
+        int count = 0;
+        for (int i = 0; i < current.uids.length; i++) {
+            if (current.uids[i] >= 10000 && (current.flags[i] & flag) != 0) count++;
+        }
+        int[] res = new int[count];
+        count = 0;
+        for (int i = 0; i < current.uids.length; i++) {
+            if (current.uids[i] >= 10000 && (current.flags[i] & flag) != 0) res[count++] = current.uids[i];
+        }
+        return res;
+    }
+
+    int size() {
+        return current().uids.length;
+    }
+
+    private Entries current() {
+        Entries current = entries;
+        MappedByteBuffer mapped = buffer;
+        if (mapped == null) {
+            return current;
+        }
+        int sequence = mapped.getInt(OFFSET_SEQUENCE);
+        if (sequence == current.sequence || sequence == failedSequence) {
+            return current;
+        }
+        refresh();
+        return entries;
+    }
+
+    /**
+     * Maps the file again, needed after the writer replaced it.
+     */
+    synchronized void remap() {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (raf.length() < HEADER_SIZE || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                LOGGER.w("bad shell policy image %s", file);
+                return;
+            }
+            buffer = mapped;
+            entries = Entries.EMPTY;
+            failedSequence = -1;
+        } catch (IOException e) {
+            LOGGER.w(e, "map shell policy image %s", file);
+        }
+    }
+
+    /**
+     * Copies the entries out of the mapped file if the sequence has moved.
+     *
+     * @return true if the entries changed
+     */
+    synchronized boolean refresh() {
+        MappedByteBuffer mapped = buffer;
+        if (mapped == null) {
+            return false;
+        }
+
+        int capacity = (mapped.capacity() - HEADER_SIZE) / ENTRY_SIZE;
+        CRC32 crc = new CRC32();
+        int sequence = 0;
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            sequence = mapped.getInt(OFFSET_SEQUENCE);
+            if (sequence == entries.sequence) {
+                return false;
+            }
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+
+            int count = mapped.getInt(OFFSET_COUNT);
+            int checksum = mapped.getInt(OFFSET_COUNT + 4);
+            if (count < 0 || count > capacity) {
+                continue;
+            }
+            int[] uids = new int[count];
+            int[] flags = new int[count];
+            crc.reset();
+            for (int i = 0; i < count; i++) {
+                int offset = HEADER_SIZE + i * ENTRY_SIZE;
+                uids[i] = mapped.getInt(offset);
+                flags[i] = mapped.getInt(offset + 4);
+                updateChecksum(crc, uids[i]);
+                updateChecksum(crc, flags[i]);
+            }
+
+            // The checksum catches entries that were read out of order with the sequence.
+            if (mapped.getInt(OFFSET_SEQUENCE) == sequence && (int) crc.getValue() == checksum) {
+                entries = new Entries(sequence, uids, flags);
+                return true;
+            }
+        }
+        LOGGER.w("shell policy image %s kept changing, using the previous entries", file);
+        failedSequence = sequence;
+        return false;
+    }
+
+    private static void updateChecksum(CRC32 crc, int value) {
+        crc.update(value >>> 24);
+        crc.update(value >>> 16);
+        crc.update(value >>> 8);
+        crc.update(value);
+    }
+
+    static final class Writer {
+
+        private final File file;
+        private FileChannel channel;
+        private ByteBuffer body;
+        private int capacity;
+        // Starts somewhere random so a reader never mistakes a new image for one it has already read.
+        private int sequence = (int) System.nanoTime() & ~1;
+
+        Writer(@NonNull File file) {
+            this.file = file;
+        }
+
+        synchronized void write(@NonNull SparseArray<SuiConfig.PackageEntry> index) throws IOException {
+            // SparseArray keeps its keys sorted, so are the entries.
+            int count = 0;
+            for (int i = 0; i < index.size(); i++) {
+                if (index.valueAt(i).flags != 0) count++;
+            }
+            if (channel == null || count > capacity) {
+                create(count);
+            }
+
+            CRC32 crc = new CRC32();
+            body.clear();
+            for (int i = 0; i < index.size(); i++) {
+                SuiConfig.PackageEntry entry = index.valueAt(i);
+                if (entry.flags == 0) continue;
+                body.putInt(entry.uid);
+                body.putInt(entry.flags);
+                updateChecksum(crc, entry.uid);
+                updateChecksum(crc, entry.flags);
+            }
+            body.flip();
+
+            ByteBuffer header = ByteBuffer.allocate(8);
+            writeSequence(++sequence);
+            channel.write(body, HEADER_SIZE);
+            header.putInt(count).putInt((int) crc.getValue()).flip();
+            channel.write(header, OFFSET_COUNT);
+            writeSequence(++sequence);
+        }
+
+        private void writeSequence(int value) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            buffer.putInt(value).flip();
+            channel.write(buffer, OFFSET_SEQUENCE);
+        }
+
+        /**
+         * Creates a new, empty image large enough for count entries and renames it over the old one.
+         */
+        private void create(int count) throws IOException {
+            int newCapacity = MIN_CAPACITY;
+            while (newCapacity < count) {
+                newCapacity <<= 1;
+            }
+
+            File dir = file.getParentFile();
+            if (dir != null && !dir.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                dir.mkdirs();
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(0);
+                raf.setLength(HEADER_SIZE + (long) newCapacity * ENTRY_SIZE);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(sequence += 2);
+                // Readable by the shell server before it can be opened under the final name.
+                Os.fchown(raf.getFD(), 0, 2000);
+                Os.fchmod(raf.getFD(), 0640);
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("rename " + tmp + " to " + file + " failed");
+                }
+            } catch (ErrnoException e) {
+                raf.close();
+                throw new IOException("set mode of " + tmp, e);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+
+            if (channel != null) {
+                channel.close();
+            }
+            channel = raf.getChannel();
+            body = ByteBuffer.allocate(newCapacity * ENTRY_SIZE);
+            capacity = newCapacity;
+            LOGGER.d("created shell policy image %s with %d entries", file, newCapacity);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.server;
+
+import static rikka.sui.server.ServerConstants.LOGGER;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.ArraySet;
+import android.util.SparseArray;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import rikka.hidden.compat.PackageManagerApis;
+
+/**
+ * Packages that request the Shizuku API permission, per user.
+ *
+ * <p>Requested permissions are only known from a GET_PERMISSIONS query, which is by far the largest
+ * part of a full package list. Each user is scanned once, when it is first asked for, after that
+ * only packages reported by {@link #invalidatePackage} are queried again. Holders of the permission
+ * cannot be used instead, it is only defined while the Shizuku manager is installed.
+ */
+public class ShizukuRequesterIndex {
+
+    public static final String PERMISSION = "moe.shizuku.manager.permission.API_V23";
+
+    private static final int PACKAGE_QUERY_FLAGS =
+            0x00002000 /*MATCH_UNINSTALLED_PACKAGES*/ | PackageManager.GET_PERMISSIONS;
+
+    // userId -> requester packages, all guarded by this.
+    private final SparseArray<ArraySet<String>> requesters = new SparseArray<>();
+    // userId -> packages to query again before the next lookup.
+    private final SparseArray<ArraySet<String>> dirtyPackages = new SparseArray<>();
+
+    /**
+     * Scans the users not scanned yet in parallel, so later lookups from several threads do not
+     * queue up behind each other's scans.
+     */
+    public void prepare(@NonNull List<Integer> users) {
+        List<Integer> missing = new ArrayList<>();
+        synchronized (this) {
+            for (int user : users) {
+                if (requesters.get(user) == null) {
+                    missing.add(user);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        List<ArraySet<String>> scanned = AppListBuilder.forEachUser(missing, ShizukuRequesterIndex::scan);
+        synchronized (this) {
+            for (int i = 0; i < missing.size(); i++) {
+                if (scanned.get(i) != null && requesters.get(missing.get(i)) == null) {
+                    requesters.put(missing.get(i), scanned.get(i));
+                }
+            }
+        }
+    }
+
+    public synchronized boolean isRequester(@NonNull String packageName, int userId) {
+        return getRequestersLocked(userId).contains(packageName);
+    }
+
+    /**
+     * Marks packageName of userId out of date, userId -1 for all users.
+     */
+    public synchronized void invalidatePackage(@NonNull String packageName, int userId) {
+        for (int i = 0; i < requesters.size(); i++) {
+            int user = requesters.keyAt(i);
+            if (userId != -1 && user != userId) {
+                continue;
+            }
+            ArraySet<String> packages = dirtyPackages.get(user);
+            if (packages == null) {
+                packages = new ArraySet<>();
+                dirtyPackages.put(user, packages);
+            }
+            packages.add(packageName);
+        }
+    }
+
+    private ArraySet<String> getRequestersLocked(int userId) {
+        ArraySet<String> packages = requesters.get(userId);
+        if (packages == null) {
+            packages = scan(userId);
+            if (packages == null) {
+                // Query failed, nothing is a requester until the next try.
+                return new ArraySet<>();
+            }
+            requesters.put(userId, packages);
+            return packages;
+        }
+
+        ArraySet<String> dirty = dirtyPackages.get(userId);
+        if (dirty != null) {
+            dirtyPackages.remove(userId);
+            for (String packageName : dirty) {
+                PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PACKAGE_QUERY_FLAGS, userId);
+                if (pi != null && requestsPermission(pi)) {
+                    packages.add(packageName);
+                } else {
+                    packages.remove(packageName);
+                }
+            }
+        }
+        return packages;
+    }
+
+    @Nullable private static ArraySet<String> scan(int userId) {
+        long start = SystemClock.elapsedRealtime();
+        List<PackageInfo> installed = AppListBuilder.getInstalledPackages(PACKAGE_QUERY_FLAGS, userId);
+        if (installed.isEmpty()) {
+            return null;
+        }
+
+        ArraySet<String> packages = new ArraySet<>();
+        for (PackageInfo pi : installed) {
+            if (requestsPermission(pi)) {
+                packages.add(pi.packageName);
+            }
+        }
+        LOGGER.i(
+                "found %d Shizuku requesters in %d packages of user %d in %d ms",
+                packages.size(), installed.size(), userId, SystemClock.elapsedRealtime() - start);
+        return packages;
+    }
+
+    private static boolean requestsPermission(PackageInfo pi) {
+        if (pi.requestedPermissions == null) {
+            return false;
+        }
+        for (String p : pi.requestedPermissions) {
+            if (PERMISSION.equals(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
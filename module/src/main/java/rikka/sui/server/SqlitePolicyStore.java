@@ -0,0 +1,194 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.server;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import rikka.sui.server.SuiConfig.PackageEntry;
+import rikka.sui.util.SQLiteDataBaseRemoteCompat;
+
+final class SqlitePolicyStore implements PolicyStore {
+
+    private static final String UID_CONFIG_TABLE = "uid_configs";
+
+    private final String path;
+    private SQLiteDatabase databaseInternal;
+    private SQLiteStatement upsertStatement;
+    private SQLiteStatement deleteStatement;
+
+    SqlitePolicyStore(String path) {
+        this.path = path;
+    }
+
+    boolean exists() {
+        return new File(path).exists();
+    }
+
+    private SQLiteDatabase createDatabase(boolean allowRetry) {
+        SQLiteDatabase database;
+        try {
+            database = SQLiteDataBaseRemoteCompat.openDatabase(path, null);
+            database.execSQL("CREATE TABLE IF NOT EXISTS uid_configs(uid INTEGER PRIMARY KEY, flags INTEGER);");
+        } catch (Throwable e) {
+            ServerConstants.LOGGER.e(e, "create database");
+            if (allowRetry && (new File(path)).delete()) {
+                ServerConstants.LOGGER.i("delete database and retry");
+                database = createDatabase(false);
+            } else {
+                database = null;
+            }
+        }
+
+        return database;
+    }
+
+    private synchronized SQLiteDatabase getDatabase() {
+        if (databaseInternal == null) {
+            databaseInternal = createDatabase(true);
+        }
+        return databaseInternal;
+    }
+
+    @Nullable @Override
+    public SuiConfig read() {
+        SQLiteDatabase database = getDatabase();
+        if (database == null) {
+            return null;
+        }
+
+        try (Cursor cursor = database.query(
+                UID_CONFIG_TABLE,
+                (String[]) null,
+                (String) null,
+                (String[]) null,
+                (String) null,
+                (String) null,
+                (String) null,
+                (String) null)) {
+            if (cursor == null) {
+                return null;
+            }
+            SuiConfig res = new SuiConfig();
+            int cursorIndexOfUid = cursor.getColumnIndexOrThrow("uid");
+            int cursorIndexOfFlags = cursor.getColumnIndexOrThrow("flags");
+            if (cursor.moveToFirst()) {
+                do {
+                    res.packages.add(
+                            new PackageEntry(cursor.getInt(cursorIndexOfUid), cursor.getInt(cursorIndexOfFlags)));
+                } while (cursor.moveToNext());
+            }
+            return res;
+        }
+    }
+
+    @Override
+    public synchronized void write(@NonNull SparseLongArray batch) {
+        SQLiteDatabase database = getDatabase();
+        if (database == null) {
+            return;
+        }
+
+        compileStatements(database);
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                int uid = batch.keyAt(i);
+                long value = batch.valueAt(i);
+                if (value == REMOVED) {
+                    deleteStatement.bindLong(1, uid);
+                    deleteStatement.executeUpdateDelete();
+                } else {
+                    upsertStatement.bindLong(1, uid);
+                    upsertStatement.bindLong(2, (int) value);
+                    upsertStatement.executeInsert();
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Replaces the whole table with entries in one transaction.
+     */
+    synchronized void replaceAll(@NonNull SparseIntArray entries) throws IOException {
+        SQLiteDatabase database = getDatabase();
+        if (database == null) {
+            throw new IOException("open database " + path + " failed");
+        }
+
+        compileStatements(database);
+        database.beginTransaction();
+        try {
+            database.delete(UID_CONFIG_TABLE, null, null);
+            for (int i = 0; i < entries.size(); i++) {
+                upsertStatement.bindLong(1, entries.keyAt(i));
+                upsertStatement.bindLong(2, entries.valueAt(i));
+                upsertStatement.executeInsert();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private void compileStatements(SQLiteDatabase database) {
+        if (upsertStatement == null) {
+            upsertStatement = database.compileStatement(
+                    "INSERT OR REPLACE INTO " + UID_CONFIG_TABLE + "(uid, flags) VALUES(?, ?)");
+            deleteStatement = database.compileStatement("DELETE FROM " + UID_CONFIG_TABLE + " WHERE uid=?");
+        }
+    }
+
+    synchronized void close() {
+        if (databaseInternal != null) {
+            databaseInternal.close();
+            databaseInternal = null;
+            upsertStatement = null;
+            deleteStatement = null;
+        }
+    }
+
+    @Override
+    public void sync() {
+        SQLiteDatabase database = getDatabase();
+        if (database == null) {
+            return;
+        }
+
+        // PRAGMA returns a row, so it has to go through a query.
+        try (Cursor cursor = database.rawQuery("PRAGMA wal_checkpoint(FULL)", null)) {
+            cursor.moveToFirst();
+        } catch (Throwable e) {
+            ServerConstants.LOGGER.w(e, "checkpoint database");
+        }
+    }
+
+    @Override
+    public void maintain() {}
+}
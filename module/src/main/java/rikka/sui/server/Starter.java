@@ -23,20 +23,69 @@ import static rikka.sui.server.ServerConstants.LOGGER;
 
 import android.content.Context;
 import android.ddm.DdmHandleAppName;
+import android.os.Build;
 import android.os.ServiceManager;
+import android.os.SystemClock;
+import java.lang.reflect.Method;
 import java.util.Objects;
 
 public class Starter {
 
+    private static final long POLL_INITIAL_MS = 50;
+    private static final long POLL_MAX_MS = 1000;
+
     private static void waitSystemService(String name) {
+        if (waitForService(name)) {
+            return;
+        }
+
+        long delay = POLL_INITIAL_MS;
         while (ServiceManager.getService(name) == null) {
-            try {
-                LOGGER.i("service " + name + " is not started, wait 1s.");
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                LOGGER.w(e.getMessage(), e);
+            LOGGER.i("service %s is not started, wait %d ms.", name, delay);
+            SystemClock.sleep(delay);
+            delay = Math.min(delay * 2, POLL_MAX_MS);
+        }
+    }
+
+    /**
+     * Blocks until servicemanager reports name as registered, false if that is not supported
+     * (before Android 11) or failed.
+     */
+    private static boolean waitForService(String name) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            return false;
+        }
+        try {
+            //noinspection JavaReflectionMemberAccess
+            Method method = ServiceManager.class.getDeclaredMethod("waitForService", String.class);
+            return method.invoke(null, name) != null;
+        } catch (Throwable e) {
+            LOGGER.w(e, "ServiceManager.waitForService(%s)", name);
+            return false;
+        }
+    }
+
+    /**
+     * Waits for all services at the same time, so the slowest one decides how long it takes.
+     */
+    private static void waitSystemServices(String... names) {
+        long start = SystemClock.elapsedRealtime();
+        Thread[] threads = new Thread[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            threads[i] = new Thread(() -> waitSystemService(name), "sui-wait-" + name);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    LOGGER.w(e, "join %s", thread.getName());
+                }
             }
         }
+        LOGGER.i("system services are ready in %d ms", SystemClock.elapsedRealtime() - start);
     }
 
     public static void main(String[] args) {
@@ -45,6 +94,8 @@ public class Starter {
             System.exit(1);
         });
 
+        StartupTrace.init();
+
         String filesPath = null;
         boolean isShell = false;
 
@@ -61,10 +112,9 @@ public class Starter {
 
         Objects.requireNonNull(filesPath, "--files-path not set");
 
-        waitSystemService("package");
-        waitSystemService("activity");
-        waitSystemService(Context.USER_SERVICE);
-        waitSystemService(Context.APP_OPS_SERVICE);
+        StartupTrace.begin("wait_system_services");
+        waitSystemServices("package", "activity", Context.USER_SERVICE, Context.APP_OPS_SERVICE);
+        StartupTrace.end("wait_system_services");
 
         SuiService.main(filesPath, isShell);
     }
@@ -0,0 +1,315 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.server;
+
+import static rikka.sui.server.ServerConstants.LOGGER;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Startup phases of the server, timed with SystemClock.elapsedRealtime() which is the same clock
+ * (CLOCK_BOOTTIME) sui_main uses for the phases it hands over in the environment. The timeline ends
+ * when the binder is first sent to the bridge, the root server keeps the last boots in
+ * /data/adb/sui/startup_timeline.
+ */
+final class StartupTrace {
+
+    private static final String TRACE_ENV = "SUI_STARTUP_TRACE";
+    // Set by sui_main when /data/adb/sui/trace_startup exists.
+    private static final String ATRACE_ENV = "SUI_STARTUP_ATRACE";
+    private static final String[] TRACE_MARKER_PATHS = {
+        "/sys/kernel/tracing/trace_marker", "/sys/kernel/debug/tracing/trace_marker"
+    };
+    private static final File TIMELINE_FILE = new File("/data/adb/sui/startup_timeline");
+    private static final int MAX_BOOTS = 10;
+
+    private static final class Phase {
+
+        final String name;
+        final long start;
+        long end = -1;
+
+        Phase(String name, long start) {
+            this.name = name;
+            this.start = start;
+        }
+    }
+
+    // Guarded by StartupTrace.class.
+    private static final List<Phase> phases = new ArrayList<>();
+    private static FileOutputStream traceMarker;
+    private static String timeline;
+
+    private StartupTrace() {}
+
+    /**
+     * Takes over the phases of sui_main, call it before any other phase begins.
+     */
+    static synchronized void init() {
+        long now = SystemClock.elapsedRealtime();
+        long exec = -1;
+        String nativePhases = System.getenv(TRACE_ENV);
+        if (nativePhases != null && !nativePhases.isEmpty()) {
+            for (String item : nativePhases.split(",")) {
+                // name:start:end
+                String[] parts = item.split(":");
+                if (parts.length != 3) {
+                    continue;
+                }
+                try {
+                    Phase phase = new Phase(parts[0], Long.parseLong(parts[1]));
+                    phase.end = Long.parseLong(parts[2]);
+                    phases.add(phase);
+                    exec = Math.max(exec, phase.end);
+                } catch (NumberFormatException e) {
+                    LOGGER.w("bad startup phase %s", item);
+                }
+            }
+        }
+        if (exec != -1) {
+            // From app_process being exec'd to Java code running.
+            Phase vmStart = new Phase("vm_start", exec);
+            vmStart.end = now;
+            phases.add(vmStart);
+        }
+
+        if ("1".equals(System.getenv(ATRACE_ENV))) {
+            for (String path : TRACE_MARKER_PATHS) {
+                try {
+                    traceMarker = new FileOutputStream(path);
+                    break;
+                } catch (IOException ignored) {
+                }
+            }
+            if (traceMarker == null) {
+                LOGGER.w("can't open trace_marker, startup phases are not traced");
+            }
+        }
+
+        // Not for the processes started by the server.
+        try {
+            Os.unsetenv(TRACE_ENV);
+            Os.unsetenv(ATRACE_ENV);
+        } catch (ErrnoException e) {
+            LOGGER.w(e, "unsetenv");
+        }
+    }
+
+    static synchronized void begin(String name) {
+        if (timeline != null) {
+            return;
+        }
+        phases.add(new Phase(name, SystemClock.elapsedRealtime()));
+        writeMarker("B|" + Os.getpid() + "|sui:" + name);
+    }
+
+    /**
+     * Ends the latest open phase called name, on the thread it began on so the atrace section pairs
+     * up.
+     */
+    static synchronized void end(String name) {
+        if (timeline != null) {
+            return;
+        }
+        for (int i = phases.size() - 1; i >= 0; i--) {
+            Phase phase = phases.get(i);
+            if (phase.end == -1 && phase.name.equals(name)) {
+                phase.end = SystemClock.elapsedRealtime();
+                writeMarker("E|" + Os.getpid());
+                return;
+            }
+        }
+    }
+
+    private static void writeMarker(String marker) {
+        if (traceMarker == null) {
+            return;
+        }
+        try {
+            traceMarker.write(marker.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOGGER.w(e, "write trace_marker");
+            closeTraceMarker();
+        }
+    }
+
+    private static void closeTraceMarker() {
+        if (traceMarker == null) {
+            return;
+        }
+        try {
+            traceMarker.close();
+        } catch (IOException ignored) {
+        }
+        traceMarker = null;
+    }
+
+    /**
+     * Ends the timeline once the server is usable, later calls do nothing.
+     */
+    static void finish() {
+        String boot;
+        synchronized (StartupTrace.class) {
+            if (timeline != null) {
+                return;
+            }
+            timeline = format();
+            boot = timeline;
+            closeTraceMarker();
+        }
+
+        LOGGER.i("startup timeline:\n%s", boot);
+        if (!SuiService.isShellMode()) {
+            persist(boot);
+        }
+    }
+
+    private static String format() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("boot ")
+                .append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.ROOT).format(new Date()))
+                .append(" process=")
+                .append(SuiService.isShellMode() ? "sui_shell" : "sui")
+                .append(" version=")
+                .append(readModuleVersion())
+                .append(" compiled=")
+                .append(isCompiled())
+                .append(" build=")
+                .append(Build.FINGERPRINT)
+                .append('\n');
+        sb.append(String.format(Locale.ROOT, "%10s %8s  %s%n", "start_ms", "took_ms", "phase"));
+
+        List<Phase> sorted = new ArrayList<>(phases);
+        sorted.sort((a, b) -> Long.compare(a.start, b.start));
+        for (int i = 0; i < sorted.size(); i++) {
+            Phase phase = sorted.get(i);
+            // Phases inside an earlier one are indented below it.
+            int depth = 0;
+            for (int j = 0; j < i; j++) {
+                Phase outer = sorted.get(j);
+                if (phase.end != -1 && outer.end != -1 && outer.end >= phase.end) {
+                    depth++;
+                }
+            }
+            String took = phase.end != -1 ? Long.toString(phase.end - phase.start) : "-";
+            sb.append(String.format(Locale.ROOT, "%10d %8s  ", phase.start, took));
+            for (int j = 0; j < depth; j++) {
+                sb.append("  ");
+            }
+            sb.append(phase.name).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Whether sui.dex runs compiled code, which compile_dex.sh provides from the second boot on.
+     */
+    private static boolean isCompiled() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/maps"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.endsWith("/sui.odex")) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.w(e, "read /proc/self/maps");
+        }
+        return false;
+    }
+
+    private static String readModuleVersion() {
+        String filesPath = SuiService.getFilesPath();
+        if (filesPath == null || SuiService.isShellMode()) {
+            return "unknown";
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(new File(filesPath, "module.prop")))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("version=")) {
+                    return line.substring("version=".length()).replace(' ', '_');
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.w(e, "read module.prop");
+        }
+        return "unknown";
+    }
+
+    private static void persist(String boot) {
+        List<String> boots = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(TIMELINE_FILE))) {
+            StringBuilder current = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("boot ")) {
+                    if (current != null) {
+                        boots.add(current.toString());
+                    }
+                    current = new StringBuilder();
+                }
+                if (current != null) {
+                    current.append(line).append('\n');
+                }
+            }
+            if (current != null) {
+                boots.add(current.toString());
+            }
+        } catch (FileNotFoundException ignored) {
+        } catch (IOException e) {
+            LOGGER.w(e, "read %s", TIMELINE_FILE);
+        }
+        boots.add(boot);
+
+        File tmp = new File(TIMELINE_FILE.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            for (String item : boots.subList(Math.max(0, boots.size() - MAX_BOOTS), boots.size())) {
+                out.write(item.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            LOGGER.w(e, "write %s", tmp);
+            return;
+        }
+        if (!tmp.renameTo(TIMELINE_FILE)) {
+            LOGGER.w("rename %s to %s failed", tmp, TIMELINE_FILE);
+        }
+    }
+
+    static synchronized void dump(PrintWriter pw) {
+        pw.println("Startup timeline:");
+        pw.print(timeline != null ? timeline : format());
+    }
+}
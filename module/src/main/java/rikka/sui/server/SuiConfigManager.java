@@ -19,17 +19,15 @@
 
 package rikka.sui.server;
 
-import android.os.Handler;
-import android.os.HandlerThread;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
 import rikka.shizuku.server.ConfigManager;
 
@@ -41,19 +39,10 @@ public class SuiConfigManager extends ConfigManager {
     private static final String LEGACY_SHELL_DIR = "/data/local/tmp/sui_shell";
     private static final String SHELL_BASE_DIR = "/data/local/tmp";
     private static final String SHELL_DIR_MARKER = "/data/adb/sui/shell_dir_name";
-    private static final String SHELL_CONFIG_FILENAME = "sui_uids.txt";
     private static final String SHELL_DIR_PREFIX = "sui_shell_";
-    private static final long SHELL_SYNC_DEBOUNCE_MS = 200;
-    private static final HandlerThread SHELL_SYNC_THREAD = new HandlerThread("sui-shell-sync");
-    private static final Handler SHELL_SYNC_HANDLER;
 
     private static android.os.FileObserver shellConfigObserver;
 
-    static {
-        SHELL_SYNC_THREAD.start();
-        SHELL_SYNC_HANDLER = new Handler(SHELL_SYNC_THREAD.getLooper());
-    }
-
     private static boolean isValidShellDirName(String name) {
         if ("sui_shell".equals(name)) {
             return true;
@@ -99,7 +88,9 @@ public class SuiConfigManager extends ConfigManager {
             LOGGER.i("SuiConfigManager: shell mode, starting with empty config and setting up FileObserver");
             return new SuiConfig();
         }
+        StartupTrace.begin("load_config");
         SuiConfig config = SuiDatabase.readConfig();
+        StartupTrace.end("load_config");
         if (config == null) {
             LOGGER.e("SuiConfigManager: failed to read database, starting empty");
             return new SuiConfig();
@@ -110,28 +101,74 @@ public class SuiConfigManager extends ConfigManager {
 
     public static final int UID_GLOBAL_SETTINGS = -2;
 
+    /**
+     * Immutable view of the config. Entries in it are never modified, every change publishes a new
+     * snapshot so readers on binder threads neither lock nor allocate.
+     */
+    private static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(new SparseArray<>());
+
+        final SparseArray<SuiConfig.PackageEntry> index;
+        final int defaultFlags;
+        final int[] hiddenUids;
+        final int[] rootUids;
+        final int[] deniedUids;
+        final int[] shellUids;
+
+        Snapshot(SparseArray<SuiConfig.PackageEntry> index) {
+            this.index = index;
+            SuiConfig.PackageEntry defaultEntry = index.get(DEFAULT_UID);
+            this.defaultFlags = defaultEntry != null ? defaultEntry.flags : 0;
+            this.hiddenUids = buildUidsByFlag(index, SuiConfig.FLAG_HIDDEN);
+            this.rootUids = buildUidsByFlag(index, SuiConfig.FLAG_ALLOWED);
+            this.deniedUids = buildUidsByFlag(index, SuiConfig.FLAG_DENIED);
+            this.shellUids = buildUidsByFlag(index, SuiConfig.FLAG_ALLOWED_SHELL);
+        }
+
+        private static int[] buildUidsByFlag(SparseArray<SuiConfig.PackageEntry> index, int flag) {
+            int count = 0;
+            for (int i = 0; i < index.size(); i++) {
+                SuiConfig.PackageEntry entry = index.valueAt(i);
+                if (entry.uid >= 10000 && (entry.flags & flag) != 0) count++;
+            }
+            int[] res = new int[count];
+            count = 0;
+            for (int i = 0; i < index.size(); i++) {
+                SuiConfig.PackageEntry entry = index.valueAt(i);
+                if (entry.uid >= 10000 && (entry.flags & flag) != 0) res[count++] = entry.uid;
+            }
+            return res;
+        }
+    }
+
+    // Written with the manager locked, the source of the published snapshot.
     private final SuiConfig config;
-    private final Map<Integer, SuiConfig.PackageEntry> packageIndex = new HashMap<>();
-    private final Runnable syncUidsToShellFileRunnable = this::syncUidsToShellFile;
-    private int[] hiddenUidsCache;
-    private int[] rootUidsCache;
-    private int[] deniedUidsCache;
-    private int[] shellUidsCache;
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    // In shell mode, lookups read the image written by the root server instead of the snapshot.
+    private final SharedPolicyImage shellImage;
+    private final SharedPolicyImage.Writer shellImageWriter;
     private String shortcutToken;
 
     public SuiConfigManager() {
         this.config = load();
+        File shellImageFile = new File(getShellDir(), SharedPolicyImage.FILENAME);
+        if (SuiService.isShellMode()) {
+            shellImage = new SharedPolicyImage(shellImageFile);
+            shellImageWriter = null;
+        } else {
+            shellImage = null;
+            shellImageWriter = new SharedPolicyImage.Writer(shellImageFile);
+        }
         synchronized (this) {
-            rebuildPackageIndexLocked();
+            publishSnapshotLocked();
         }
         if (SuiService.isShellMode()) {
-            reloadShellConfigFromFile();
+            reloadShellImage(true);
             if (shellConfigObserver == null) {
                 shellConfigObserver = createShellConfigObserver();
                 shellConfigObserver.startWatching();
             }
-        } else {
-            syncUidsToShellFile();
         }
     }
 
@@ -162,161 +199,137 @@ public class SuiConfigManager extends ConfigManager {
         return new File(LEGACY_SHELL_DIR);
     }
 
-    private File getShellConfigFile() {
-        return new File(getShellDir(), SHELL_CONFIG_FILENAME);
-    }
-
-    private void rebuildPackageIndexLocked() {
-        packageIndex.clear();
+    private void publishSnapshotLocked() {
+        SparseArray<SuiConfig.PackageEntry> index = new SparseArray<>(config.packages.size());
         for (SuiConfig.PackageEntry entry : config.packages) {
-            packageIndex.put(entry.uid, entry);
+            index.put(entry.uid, entry);
         }
-    }
+        snapshot = new Snapshot(index);
 
-    private void invalidateUidCacheLocked() {
-        hiddenUidsCache = null;
-        rootUidsCache = null;
-        deniedUidsCache = null;
-        shellUidsCache = null;
-    }
-
-    private void reloadShellConfigFromFile() {
-        try {
-            java.io.File file = getShellConfigFile();
-            if (!file.exists()) return;
-            try (java.io.BufferedReader br = new java.io.BufferedReader(new java.io.FileReader(file))) {
-                String line;
-                synchronized (this) {
-                    config.packages.clear();
-                    while ((line = br.readLine()) != null) {
-                        String[] parts = line.split(":");
-                        if (parts.length == 2) {
-                            int uid = Integer.parseInt(parts[0]);
-                            int flags = Integer.parseInt(parts[1]);
-                            config.packages.add(new SuiConfig.PackageEntry(uid, flags));
-                        }
-                    }
-                    rebuildPackageIndexLocked();
-                    invalidateUidCacheLocked();
-                }
-            }
-
-            SuiService service = SuiService.getInstance();
-            if (service != null && service.getClientManager() != null) {
-                for (rikka.shizuku.server.ClientRecord record :
-                        service.getClientManager().getClients()) {
-                    SuiConfig.PackageEntry entry = find(record.uid);
-                    boolean allowed = entry != null
-                            && ((entry.flags & (SuiConfig.FLAG_ALLOWED | SuiConfig.FLAG_ALLOWED_SHELL)) != 0);
-                    record.allowed = allowed;
-                }
+        if (shellImageWriter != null) {
+            try {
+                shellImageWriter.write(index);
+            } catch (Throwable e) {
+                LOGGER.e(e, "sync uids to shell");
             }
-            LOGGER.i("Shell server reloaded config, apps: " + config.packages.size());
-        } catch (Throwable e) {
-            LOGGER.e(e, "reload shell config");
         }
     }
 
-    public void reloadShellConfig() {
-        if (SuiService.isShellMode()) {
-            reloadShellConfigFromFile();
+    private void reloadShellImage(boolean remap) {
+        if (remap) {
+            shellImage.remap();
+        }
+        if (!shellImage.refresh() && !remap) {
+            return;
         }
-    }
 
-    private void syncUidsToShellFile() {
-        if (SuiService.isShellMode()) return;
-        try {
-            StringBuilder sb = new StringBuilder();
-            synchronized (this) {
-                for (SuiConfig.PackageEntry entry : config.packages) {
-                    sb.append(entry.uid).append(":").append(entry.flags).append("\n");
-                }
+        SuiService service = SuiService.getInstance();
+        if (service != null && service.getClientManager() != null) {
+            for (rikka.shizuku.server.ClientRecord record :
+                    service.getClientManager().getClients()) {
+                record.allowed =
+                        (getFlags(record.uid) & (SuiConfig.FLAG_ALLOWED | SuiConfig.FLAG_ALLOWED_SHELL)) != 0;
             }
-            java.io.File dir = getShellDir();
-            if (!dir.exists()) dir.mkdirs();
-            java.io.File file = new java.io.File(dir, SHELL_CONFIG_FILENAME);
-            java.io.File tempFile = new java.io.File(dir, SHELL_CONFIG_FILENAME + ".tmp");
-            try (java.io.FileOutputStream fos = new java.io.FileOutputStream(tempFile)) {
-                fos.write(sb.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
-                fos.getFD().sync();
-                fos.close();
-                if (tempFile.renameTo(file)) {
-                    android.system.Os.chmod(file.getAbsolutePath(), 0644);
-                }
-            }
-        } catch (Throwable e) {
-            LOGGER.e(e, "sync uids to shell");
         }
+        LOGGER.i("Shell server reloaded config, apps: " + shellImage.size());
     }
 
-    private void scheduleSyncUidsToShellFile() {
-        if (SuiService.isShellMode()) return;
-        SHELL_SYNC_HANDLER.removeCallbacks(syncUidsToShellFileRunnable);
-        SHELL_SYNC_HANDLER.postDelayed(syncUidsToShellFileRunnable, SHELL_SYNC_DEBOUNCE_MS);
+    public void reloadShellConfig() {
+        if (SuiService.isShellMode()) {
+            reloadShellImage(true);
+        }
     }
 
     @SuppressWarnings("deprecation")
     private android.os.FileObserver createShellConfigObserver() {
         final File shellDir = getShellDir();
         return new android.os.FileObserver(
-                shellDir.getAbsolutePath(), android.os.FileObserver.CLOSE_WRITE | android.os.FileObserver.MOVED_TO) {
+                shellDir.getAbsolutePath(), android.os.FileObserver.MODIFY | android.os.FileObserver.MOVED_TO) {
             @Override
             public void onEvent(int event, String path) {
-                if (SHELL_CONFIG_FILENAME.equals(path)) {
-                    reloadShellConfigFromFile();
+                if (SharedPolicyImage.FILENAME.equals(path)) {
+                    // The image is only replaced when it grows, otherwise it is updated in place.
+                    reloadShellImage((event & android.os.FileObserver.MOVED_TO) != 0);
                 }
             }
         };
     }
 
     public int getGlobalSettings() {
-        synchronized (this) {
-            SuiConfig.PackageEntry entry = findLocked(UID_GLOBAL_SETTINGS);
-            if (entry == null) {
-                return FLAG_MONET_DISABLED;
-            }
-            int flags = entry.flags & ~FLAG_GLOBAL_SETTINGS_INITIALIZED;
-            if ((entry.flags & FLAG_GLOBAL_SETTINGS_INITIALIZED) == 0) {
-                flags |= FLAG_MONET_DISABLED;
-            }
-            return flags;
+        SuiConfig.PackageEntry entry = findExplicit(UID_GLOBAL_SETTINGS);
+        if (entry == null) {
+            return FLAG_MONET_DISABLED;
+        }
+        int flags = entry.flags & ~FLAG_GLOBAL_SETTINGS_INITIALIZED;
+        if ((entry.flags & FLAG_GLOBAL_SETTINGS_INITIALIZED) == 0) {
+            flags |= FLAG_MONET_DISABLED;
         }
+        return flags;
     }
 
     public void setGlobalSettings(int flags) {
         update(UID_GLOBAL_SETTINGS, 0xFFFFFFFF, flags | FLAG_GLOBAL_SETTINGS_INITIALIZED);
     }
 
-    private SuiConfig.PackageEntry findLocked(int uid) {
-        return packageIndex.get(uid);
+    @Nullable public SuiConfig.PackageEntry findExplicit(int uid) {
+        if (shellImage != null) {
+            int flags = shellImage.getFlags(uid);
+            return flags != 0 ? new SuiConfig.PackageEntry(uid, flags) : null;
+        }
+        return snapshot.index.get(uid);
     }
 
-    @Nullable public SuiConfig.PackageEntry findExplicit(int uid) {
-        synchronized (this) {
-            return findLocked(uid);
+    /**
+     * Returns the flags of {@link #findExplicit(int)} without allocating, or 0 if uid has no config.
+     */
+    public int getExplicitFlags(int uid) {
+        if (shellImage != null) {
+            return shellImage.getFlags(uid);
         }
+        SuiConfig.PackageEntry entry = snapshot.index.get(uid);
+        return entry != null ? entry.flags : 0;
     }
 
+    /**
+     * Returns the effective config of uid, which falls back to the config of {@link #DEFAULT_UID}.
+     * Callers that only need the flags should use {@link #getFlags(int)}, which does not allocate.
+     */
     @Nullable public SuiConfig.PackageEntry find(int uid) {
-        synchronized (this) {
-            if (uid == 0 || uid == 1000) {
-                return new SuiConfig.PackageEntry(uid, SuiConfig.FLAG_ALLOWED);
-            }
-            SuiConfig.PackageEntry entry = findLocked(uid);
-            if (uid == DEFAULT_UID) {
-                return entry;
-            }
-            if (entry != null && entry.flags != 0) {
-                LOGGER.d("SuiConfigManager: Found explicit flags for uid %d: %d", uid, entry.flags);
-                return entry;
-            }
-            SuiConfig.PackageEntry defaultEntry = findLocked(DEFAULT_UID);
-            if (defaultEntry == null || defaultEntry.flags == 0) {
-                return null;
-            }
-            LOGGER.d("SuiConfigManager: Using DEFAULT flags for uid %d. Flags: %d", uid, defaultEntry.flags);
-            return new SuiConfig.PackageEntry(uid, defaultEntry.flags);
+        if (uid == 0 || uid == 1000) {
+            return new SuiConfig.PackageEntry(uid, SuiConfig.FLAG_ALLOWED);
+        }
+        if (shellImage != null) {
+            int flags = getFlags(uid);
+            return flags != 0 ? new SuiConfig.PackageEntry(uid, flags) : null;
+        }
+        Snapshot current = snapshot;
+        SuiConfig.PackageEntry entry = current.index.get(uid);
+        if (uid == DEFAULT_UID || (entry != null && entry.flags != 0)) {
+            return entry;
+        }
+        if (current.defaultFlags == 0) {
+            return null;
+        }
+        return new SuiConfig.PackageEntry(uid, current.defaultFlags);
+    }
+
+    /**
+     * Returns the flags of {@link #find(int)}, or 0 if there is no config for uid.
+     */
+    public int getFlags(int uid) {
+        if (uid == 0 || uid == 1000) {
+            return SuiConfig.FLAG_ALLOWED;
+        }
+        if (shellImage != null) {
+            int flags = shellImage.getFlags(uid);
+            return uid == DEFAULT_UID || flags != 0 ? flags : shellImage.getFlags(DEFAULT_UID);
         }
+        Snapshot current = snapshot;
+        SuiConfig.PackageEntry entry = current.index.get(uid);
+        if (uid == DEFAULT_UID || (entry != null && entry.flags != 0)) {
+            return entry != null ? entry.flags : 0;
+        }
+        return current.defaultFlags;
     }
 
     @Override
@@ -325,87 +338,87 @@ public class SuiConfigManager extends ConfigManager {
     }
 
     public void update(int uid, int mask, int values) {
-        LOGGER.i("SuiConfigManager: update uid=" + uid + " mask=" + mask + " val=" + values);
-        boolean needRemove = false;
-        boolean needUpdate = false;
-        int finalFlags = 0;
+        update(new int[] {uid}, new int[] {mask}, new int[] {values});
+    }
+
+    /**
+     * Applies (mask, values) to each uid in one config change, which is published and persisted once.
+     */
+    public void update(@NonNull int[] uids, @NonNull int[] masks, @NonNull int[] values) {
+        SparseLongArray changes = new SparseLongArray();
 
         synchronized (this) {
-            SuiConfig.PackageEntry entry = findLocked(uid);
-            if (entry == null) {
-                int newValue = mask & values;
-                if (newValue == 0) {
-                    return;
-                }
-                entry = new SuiConfig.PackageEntry(uid, newValue);
-                config.packages.add(entry);
-                packageIndex.put(uid, entry);
-                invalidateUidCacheLocked();
-                needUpdate = true;
-                finalFlags = newValue;
-                LOGGER.i("SuiConfigManager: Added new entry for uid " + uid);
-            } else {
-                int newValue = (entry.flags & ~mask) | (mask & values);
-                if (newValue == entry.flags) {
-                    return;
-                }
-                if (newValue == 0) {
-                    config.packages.remove(entry);
-                    packageIndex.remove(uid);
-                    invalidateUidCacheLocked();
-                    needRemove = true;
-                    LOGGER.i("SuiConfigManager: Removed entry for uid " + uid);
+            // Later operations on the same uid have to see the earlier ones.
+            SparseArray<SuiConfig.PackageEntry> index = snapshot.index.clone();
+            for (int i = 0; i < uids.length; i++) {
+                int uid = uids[i];
+                int mask = masks[i];
+                LOGGER.i("SuiConfigManager: update uid=" + uid + " mask=" + mask + " val=" + values[i]);
+
+                SuiConfig.PackageEntry entry = index.get(uid);
+                if (entry == null) {
+                    int newValue = mask & values[i];
+                    if (newValue == 0) {
+                        continue;
+                    }
+                    entry = new SuiConfig.PackageEntry(uid, newValue);
+                    config.packages.add(entry);
+                    index.put(uid, entry);
+                    changes.put(uid, newValue & 0xFFFFFFFFL);
+                    LOGGER.i("SuiConfigManager: Added new entry for uid " + uid);
                 } else {
-                    entry.flags = newValue;
-                    invalidateUidCacheLocked();
-                    needUpdate = true;
-                    finalFlags = newValue;
-                    LOGGER.i("SuiConfigManager: Updated entry for uid " + uid);
+                    int newValue = (entry.flags & ~mask) | (mask & values[i]);
+                    if (newValue == entry.flags) {
+                        continue;
+                    }
+                    if (newValue == 0) {
+                        config.packages.remove(entry);
+                        index.remove(uid);
+                        changes.put(uid, PolicyStore.REMOVED);
+                        LOGGER.i("SuiConfigManager: Removed entry for uid " + uid);
+                    } else {
+                        // Entries may still be read from the old snapshot, replace instead of modifying.
+                        SuiConfig.PackageEntry newEntry = new SuiConfig.PackageEntry(uid, newValue);
+                        config.packages.set(config.packages.indexOf(entry), newEntry);
+                        index.put(uid, newEntry);
+                        changes.put(uid, newValue & 0xFFFFFFFFL);
+                        LOGGER.i("SuiConfigManager: Updated entry for uid " + uid);
+                    }
                 }
             }
+            if (changes.size() == 0) {
+                return;
+            }
+            publishSnapshotLocked();
         }
-        if (needRemove) {
-            if (!SuiService.isShellMode()) SuiDatabase.removeUid(uid);
-        } else if (needUpdate) {
-            if (!SuiService.isShellMode()) SuiDatabase.updateUid(uid, finalFlags);
-        }
-        scheduleSyncUidsToShellFile();
+        if (!SuiService.isShellMode()) SuiDatabase.updateUids(changes);
     }
 
     @Override
     public void remove(int uid) {
         boolean needRemove = false;
         synchronized (this) {
-            SuiConfig.PackageEntry entry = findLocked(uid);
+            SuiConfig.PackageEntry entry = snapshot.index.get(uid);
             if (entry != null) {
                 config.packages.remove(entry);
-                packageIndex.remove(uid);
-                invalidateUidCacheLocked();
+                publishSnapshotLocked();
                 needRemove = true;
             }
         }
         if (needRemove) {
             if (!SuiService.isShellMode()) SuiDatabase.removeUid(uid);
         }
-        scheduleSyncUidsToShellFile();
     }
 
     public boolean isHidden(int uid) {
-        SuiConfig.PackageEntry entry = find(uid);
-        if (entry == null) {
-            return false;
-        }
-        return (entry.flags & SuiConfig.FLAG_HIDDEN) != 0;
+        return (getFlags(uid) & SuiConfig.FLAG_HIDDEN) != 0;
     }
 
     public int getDefaultPermissionFlags() {
-        synchronized (this) {
-            SuiConfig.PackageEntry entry = findLocked(DEFAULT_UID);
-            if (entry == null) {
-                return 0;
-            }
-            return entry.flags & SuiConfig.MASK_PERMISSION;
+        if (shellImage != null) {
+            return shellImage.getFlags(DEFAULT_UID) & SuiConfig.MASK_PERMISSION;
         }
+        return snapshot.defaultFlags & SuiConfig.MASK_PERMISSION;
     }
 
     public void setDefaultPermissionFlags(int flags) {
@@ -418,62 +431,34 @@ public class SuiConfigManager extends ConfigManager {
         }
     }
 
-    private int[] buildUidsByFlagLocked(int flag) {
-        List<Integer> uids = new ArrayList<>();
-        for (SuiConfig.PackageEntry entry : config.packages) {
-            if (entry.uid >= 10000 && (entry.flags & flag) != 0) {
-                uids.add(entry.uid);
-            }
-        }
-        int[] res = new int[uids.size()];
-        for (int i = 0; i < uids.size(); i++) {
-            res[i] = uids.get(i);
-        }
-        return res;
-    }
-
-    private int[] getUidsByFlagLocked(int flag) {
-        if (flag == SuiConfig.FLAG_HIDDEN) {
-            if (hiddenUidsCache == null) hiddenUidsCache = buildUidsByFlagLocked(flag);
-            return hiddenUidsCache.clone();
-        }
-        if (flag == SuiConfig.FLAG_ALLOWED) {
-            if (rootUidsCache == null) rootUidsCache = buildUidsByFlagLocked(flag);
-            return rootUidsCache.clone();
-        }
-        if (flag == SuiConfig.FLAG_DENIED) {
-            if (deniedUidsCache == null) deniedUidsCache = buildUidsByFlagLocked(flag);
-            return deniedUidsCache.clone();
-        }
-        if (flag == SuiConfig.FLAG_ALLOWED_SHELL) {
-            if (shellUidsCache == null) shellUidsCache = buildUidsByFlagLocked(flag);
-            return shellUidsCache.clone();
-        }
-        return new int[0];
-    }
+    // The arrays below are shared by every caller of the same snapshot and must not be modified.
 
-    public int[] getHiddenUids() {
-        synchronized (this) {
-            return getUidsByFlagLocked(SuiConfig.FLAG_HIDDEN);
+    @NonNull public int[] getHiddenUids() {
+        if (shellImage != null) {
+            return shellImage.getUidsByFlag(SuiConfig.FLAG_HIDDEN);
         }
+        return snapshot.hiddenUids;
     }
 
-    public int[] getRootUids() {
-        synchronized (this) {
-            return getUidsByFlagLocked(SuiConfig.FLAG_ALLOWED);
+    @NonNull public int[] getRootUids() {
+        if (shellImage != null) {
+            return shellImage.getUidsByFlag(SuiConfig.FLAG_ALLOWED);
         }
+        return snapshot.rootUids;
     }
 
-    public int[] getDeniedUids() {
-        synchronized (this) {
-            return getUidsByFlagLocked(SuiConfig.FLAG_DENIED);
+    @NonNull public int[] getDeniedUids() {
+        if (shellImage != null) {
+            return shellImage.getUidsByFlag(SuiConfig.FLAG_DENIED);
         }
+        return snapshot.deniedUids;
     }
 
-    public int[] getShellUids() {
-        synchronized (this) {
-            return getUidsByFlagLocked(SuiConfig.FLAG_ALLOWED_SHELL);
+    @NonNull public int[] getShellUids() {
+        if (shellImage != null) {
+            return shellImage.getUidsByFlag(SuiConfig.FLAG_ALLOWED_SHELL);
         }
+        return snapshot.shellUids;
     }
 
     public synchronized String getShortcutToken() {
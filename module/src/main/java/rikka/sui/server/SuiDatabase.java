@@ -19,13 +19,19 @@
 
 package rikka.sui.server;
 
-import android.content.ContentValues;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import static rikka.sui.server.PolicyStore.REMOVED;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.SparseLongArray;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import java.io.File;
-import rikka.sui.server.SuiConfig.PackageEntry;
-import rikka.sui.util.SQLiteDataBaseRemoteCompat;
+import java.io.PrintWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class SuiDatabase {
 
@@ -36,89 +42,259 @@ public class SuiDatabase {
     }
 
     private static final String DATABASE_PATH;
-    private static final String UID_CONFIG_TABLE = "uid_configs";
-    private static SQLiteDatabase databaseInternal;
+    private static final String POLICY_LOG_PATH = "/data/adb/sui/policy.log";
+    // The memory-mapped policy log is used instead of SQLite when this file exists.
+    private static final String POLICY_LOG_MARKER = "/data/adb/sui/use_policy_log";
+    private static final String COMPARE_PATH = "/data/adb/sui/policy_compare";
+    private static PolicyStore storeInternal;
 
-    private static SQLiteDatabase createDatabase(boolean allowRetry) {
-        SQLiteDatabase database;
-        try {
-            database = SQLiteDataBaseRemoteCompat.openDatabase(DATABASE_PATH, null);
-            database.execSQL("CREATE TABLE IF NOT EXISTS uid_configs(uid INTEGER PRIMARY KEY, flags INTEGER);");
-        } catch (Throwable e) {
-            ServerConstants.LOGGER.e(e, "create database");
-            if (allowRetry && (new File(DATABASE_PATH)).delete()) {
-                ServerConstants.LOGGER.i("delete database and retry");
-                database = createDatabase(false);
+    // Mutations are coalesced per uid and written in one transaction shortly after on the writer thread.
+    // Nothing is checkpointed per write; flush() is the barrier for paths that must not lose them.
+    private static final long WRITE_BEHIND_DELAY_MS = 200;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long FLUSH_TIMEOUT_MS = 5000;
+    private static final long MAINTAIN_DELAY_MS = 10000;
+    private static final HandlerThread WRITER_THREAD = new HandlerThread("sui-db-writer");
+    private static final Handler WRITER_HANDLER;
+    private static final Runnable WRITE_RUNNABLE = SuiDatabase::writePending;
+    private static final Runnable MAINTAIN_RUNNABLE = SuiDatabase::maintain;
+
+    // uid -> flags, or REMOVED. Guarded by itself.
+    private static final SparseLongArray pendingWrites = new SparseLongArray();
+    private static boolean writeScheduled;
+
+    // Only used on the writer thread.
+    private static boolean unsynced;
+
+    static {
+        WRITER_THREAD.start();
+        WRITER_HANDLER = new Handler(WRITER_THREAD.getLooper());
+        Runtime.getRuntime().addShutdownHook(new Thread(SuiDatabase::flush, "sui-db-flush"));
+    }
+
+    private static synchronized PolicyStore getStore() {
+        if (storeInternal == null) {
+            SqlitePolicyStore sqlite = new SqlitePolicyStore(DATABASE_PATH);
+            File log = new File(POLICY_LOG_PATH);
+            if (new File(POLICY_LOG_MARKER).exists()) {
+                storeInternal = new MappedPolicyStore(log, sqlite);
+            } else if (log.exists()) {
+                // The marker was removed, sui.db has not been written since the log took over.
+                MappedPolicyStore mapped = new MappedPolicyStore(log, sqlite);
+                try {
+                    mapped.exportTo(sqlite);
+                    storeInternal = sqlite;
+                } catch (Throwable e) {
+                    ServerConstants.LOGGER.e(e, "export policy log, keep using it instead of the stale database");
+                    storeInternal = mapped;
+                }
             } else {
-                database = null;
+                storeInternal = sqlite;
             }
         }
+        return storeInternal;
+    }
+
+    @Nullable public static SuiConfig readConfig() {
+        PolicyStore store = getStore();
+        // Named by engine, so the startup timelines of boots with and without the policy log compare.
+        String phase = "read_" + engineName(store);
+        StartupTrace.begin(phase);
+        long start = SystemClock.elapsedRealtimeNanos();
+        SuiConfig config = store.read();
+        StartupTrace.end(phase);
+        ServerConstants.LOGGER.i(
+                "read %d uid configs with %s in %d us",
+                config != null ? config.packages.size() : 0,
+                engineName(store),
+                (SystemClock.elapsedRealtimeNanos() - start) / 1000);
+        return config;
+    }
 
-        return database;
+    private static String engineName(PolicyStore store) {
+        return store instanceof MappedPolicyStore ? "policy_log" : "sqlite";
     }
 
-    private static synchronized SQLiteDatabase getDatabase() {
-        if (databaseInternal == null) {
-            databaseInternal = createDatabase(true);
+    /**
+     * Times loading the current policy with each engine from a fresh instance, on copies written to a
+     * scratch directory. The copies are deleted afterwards.
+     */
+    static void compareEngines(@NonNull PrintWriter pw) {
+        SuiConfig config = getStore().read();
+        if (config == null) {
+            pw.println("Policy store comparison: can't read the current policy");
+            return;
+        }
+        SparseLongArray batch = new SparseLongArray(config.packages.size());
+        for (SuiConfig.PackageEntry entry : config.packages) {
+            batch.put(entry.uid, entry.flags & 0xFFFFFFFFL);
+        }
+
+        File dir = new File(COMPARE_PATH);
+        deleteContents(dir);
+        if (!dir.mkdirs()) {
+            pw.println("Policy store comparison: can't create " + dir);
+            return;
+        }
+        File database = new File(dir, "sui.db");
+        File log = new File(dir, "policy.log");
+        try {
+            SqlitePolicyStore source = new SqlitePolicyStore(database.getPath());
+            source.write(batch);
+            source.sync();
+            // Migrating creates the log, so the timed load below replays an existing one.
+            new MappedPolicyStore(log, source).read();
+            source.close();
+
+            SqlitePolicyStore sqlite = new SqlitePolicyStore(database.getPath());
+            long sqliteUs = timeRead(sqlite);
+            sqlite.close();
+            long logUs = timeRead(new MappedPolicyStore(log, sqlite));
+            pw.printf(
+                    "Policy store comparison: %d uid configs, sqlite %d us, policy_log %d us (in use: %s)%n",
+                    batch.size(), sqliteUs, logUs, engineName(getStore()));
+        } catch (Throwable e) {
+            pw.println("Policy store comparison failed: " + e);
+        } finally {
+            deleteContents(dir);
         }
-        return databaseInternal;
     }
 
-    @Nullable public static SuiConfig readConfig() {
-        SQLiteDatabase database = getDatabase();
-        if (database == null) {
-            return null;
-        }
-
-        try (Cursor cursor = database.query(
-                UID_CONFIG_TABLE,
-                (String[]) null,
-                (String) null,
-                (String[]) null,
-                (String) null,
-                (String) null,
-                (String) null,
-                (String) null)) {
-            if (cursor == null) {
-                return null;
-            }
-            SuiConfig res = new SuiConfig();
-            int cursorIndexOfUid = cursor.getColumnIndexOrThrow("uid");
-            int cursorIndexOfFlags = cursor.getColumnIndexOrThrow("flags");
-            if (cursor.moveToFirst()) {
-                do {
-                    res.packages.add(
-                            new PackageEntry(cursor.getInt(cursorIndexOfUid), cursor.getInt(cursorIndexOfFlags)));
-                } while (cursor.moveToNext());
+    private static long timeRead(PolicyStore store) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        store.read();
+        return (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+    }
+
+    private static void deleteContents(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
             }
-            return res;
         }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
     }
 
+    /**
+     * Queues an upsert of uid, it is written to the database by the writer thread later.
+     */
     public static void updateUid(int uid, int flags) {
-        SQLiteDatabase database = getDatabase();
-        if (database == null) {
+        enqueue(uid, flags & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Queues a removal of uid, it is written to the database by the writer thread later.
+     */
+    public static void removeUid(int uid) {
+        enqueue(uid, REMOVED);
+    }
+
+    /**
+     * Queues a batch of changes, uid -> flags as an unsigned int or {@link PolicyStore#REMOVED}.
+     */
+    public static void updateUids(@NonNull SparseLongArray changes) {
+        synchronized (pendingWrites) {
+            for (int i = 0; i < changes.size(); i++) {
+                enqueue(changes.keyAt(i), changes.valueAt(i));
+            }
+        }
+    }
+
+    private static void enqueue(int uid, long value) {
+        synchronized (pendingWrites) {
+            pendingWrites.put(uid, value);
+            if (!writeScheduled) {
+                writeScheduled = true;
+                WRITER_HANDLER.postDelayed(WRITE_RUNNABLE, WRITE_BEHIND_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Writes everything queued and syncs the store, blocks until done. Called before apps are force
+     * stopped, so they restart under the stored policy, and when the server exits.
+     */
+    public static void flush() {
+        if (Looper.myLooper() == WRITER_THREAD.getLooper()) {
+            flushPending();
             return;
         }
 
-        ContentValues values = new ContentValues();
-        values.put("uid", uid);
-        values.put("flags", flags);
-        String selection = "uid=?";
-        String[] selectionArgs = new String[] {String.valueOf(uid)};
-        if (database.update(UID_CONFIG_TABLE, values, selection, selectionArgs) <= 0) {
-            database.insertWithOnConflict(UID_CONFIG_TABLE, (String) null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        CountDownLatch latch = new CountDownLatch(1);
+        WRITER_HANDLER.postAtFrontOfQueue(() -> {
+            try {
+                flushPending();
+            } finally {
+                latch.countDown();
+            }
+        });
+        try {
+            if (!latch.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                ServerConstants.LOGGER.w("flush database timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    public static void removeUid(int uid) {
-        SQLiteDatabase database = getDatabase();
-        if (database == null) {
+    private static void flushPending() {
+        writePending();
+        if (!unsynced) {
             return;
         }
+        try {
+            getStore().sync();
+            unsynced = false;
+        } catch (Throwable e) {
+            ServerConstants.LOGGER.e(e, "sync database");
+        }
+    }
 
-        String selection = "uid=?";
-        String[] selectionArgs = new String[] {String.valueOf(uid)};
-        database.delete(UID_CONFIG_TABLE, selection, selectionArgs);
+    private static void writePending() {
+        SparseLongArray batch;
+        synchronized (pendingWrites) {
+            WRITER_HANDLER.removeCallbacks(WRITE_RUNNABLE);
+            writeScheduled = false;
+            if (pendingWrites.size() == 0) {
+                return;
+            }
+            batch = pendingWrites.clone();
+            pendingWrites.clear();
+        }
+
+        try {
+            getStore().write(batch);
+            unsynced = true;
+            WRITER_HANDLER.removeCallbacks(MAINTAIN_RUNNABLE);
+            WRITER_HANDLER.postDelayed(MAINTAIN_RUNNABLE, MAINTAIN_DELAY_MS);
+        } catch (Throwable e) {
+            ServerConstants.LOGGER.e(e, "write %d uids to database", batch.size());
+            requeue(batch);
+        }
+    }
+
+    private static void maintain() {
+        try {
+            getStore().maintain();
+        } catch (Throwable e) {
+            ServerConstants.LOGGER.e(e, "maintain database");
+        }
+    }
+
+    private static void requeue(SparseLongArray batch) {
+        synchronized (pendingWrites) {
+            for (int i = 0; i < batch.size(); i++) {
+                // Newer mutations of the same uid win over the failed ones.
+                if (pendingWrites.indexOfKey(batch.keyAt(i)) < 0) {
+                    pendingWrites.put(batch.keyAt(i), batch.valueAt(i));
+                }
+            }
+            WRITER_HANDLER.removeCallbacks(WRITE_RUNNABLE);
+            writeScheduled = true;
+            WRITER_HANDLER.postDelayed(WRITE_RUNNABLE, RETRY_DELAY_MS);
+        }
     }
 }
@@ -41,15 +41,23 @@ import android.os.Looper;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.OptIn;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import moe.shizuku.server.IShizukuApplication;
 import rikka.hidden.compat.ActivityManagerApis;
 import rikka.hidden.compat.PackageManagerApis;
@@ -60,7 +68,12 @@ import rikka.shizuku.server.ClientRecord;
 import rikka.shizuku.server.Service;
 import rikka.shizuku.server.util.HandlerUtil;
 import rikka.sui.model.AppInfo;
+import rikka.sui.model.AppListChanges;
+import rikka.sui.model.AppListPage;
+import rikka.sui.model.AppListQuery;
+import rikka.sui.model.CompactAppInfo;
 import rikka.sui.server.bridge.BridgeServiceClient;
+import rikka.sui.server.bridge.UidSyncScheduler;
 import rikka.sui.util.AppLaunchUtils;
 import rikka.sui.util.BridgeConstants;
 import rikka.sui.util.Logger;
@@ -131,6 +144,9 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
     }
 
     private void restartUnconfiguredRunningAppsForDefaultShellTransition() {
+        if (!shellMode) {
+            SuiDatabase.flush();
+        }
         java.util.Set<String> restartedPackages = new java.util.LinkedHashSet<>();
         for (ClientRecord record : clientManager.getClients()) {
             if (record.uid < 10000 || record.packageName == null) {
@@ -177,7 +193,11 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
         SuiService.shellMode = isShell;
 
         Looper.prepareMainLooper();
+        StartupTrace.begin("create_service");
         new SuiService();
+        StartupTrace.end("create_service");
+        // Ends in registerTask, which runs on the main looper as well.
+        StartupTrace.begin("send_binder");
         Looper.loop();
 
         LOGGER.i("server exited");
@@ -186,17 +206,22 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
 
     private static final String MANAGER_APPLICATION_ID = "com.android.systemui";
     private static final String SETTINGS_APPLICATION_ID = "com.android.settings";
+    private static final long PACKAGE_POLL_INITIAL_MS = 50;
+    private static final long PACKAGE_POLL_MAX_MS = 1000;
 
     private final SuiClientManager clientManager;
     private final SuiConfigManager configManager;
     private final SuiUserServiceManager userServiceManager;
     private final int systemUiUid;
     private final int settingsUid;
+    private final ShizukuRequesterIndex requesterIndex = new ShizukuRequesterIndex();
+    private final AppListCache appListCache;
     private IShizukuApplication systemUiApplication;
 
     private final Object managerBinderLock = new Object();
     private final Logger flog = new Logger("Sui", "/cache/sui.log");
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final UidSyncScheduler uidSyncScheduler = new UidSyncScheduler(this::syncUidsToSystemServer);
 
     private final class DelegatedPermissionCallback implements IBinder.DeathRecipient, Runnable {
 
@@ -253,6 +278,7 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
 
     private int waitForPackage(String packageName, boolean forever) {
         int uid;
+        long delay = PACKAGE_POLL_INITIAL_MS;
         while (true) {
             ApplicationInfo ai = PackageManagerApis.getApplicationInfoNoThrow(packageName, 0, 0);
             if (ai != null) {
@@ -260,21 +286,39 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
                 break;
             }
 
-            LOGGER.w("can't find %s, wait 1s", packageName);
-
-            if (!forever) return -1;
-
-            try {
-                //noinspection BusyWait
-                Thread.sleep(1000);
-            } catch (InterruptedException ignored) {
+            if (!forever) {
+                LOGGER.w("can't find %s", packageName);
+                return -1;
             }
+
+            LOGGER.w("can't find %s, wait %d ms", packageName, delay);
+            SystemClock.sleep(delay);
+            delay = Math.min(delay * 2, PACKAGE_POLL_MAX_MS);
         }
 
         LOGGER.i("uid for %s is %d", packageName, uid);
         return uid;
     }
 
+    private FutureTask<Integer> waitForPackageAsync(String packageName, boolean forever) {
+        FutureTask<Integer> task = new FutureTask<>(() -> waitForPackage(packageName, forever));
+        new Thread(task, "sui-wait-" + packageName).start();
+        return task;
+    }
+
+    private static int getUid(FutureTask<Integer> task) {
+        while (true) {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                LOGGER.w(e, "wait for package");
+            } catch (ExecutionException e) {
+                LOGGER.w(e.getCause(), "wait for package");
+                return -1;
+            }
+        }
+    }
+
     private int[] getRootUidsWithSystem() {
         int[] rootUids = configManager.getRootUids();
         int[] result = new int[rootUids.length + 3];
@@ -285,6 +329,19 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
         return result;
     }
 
+    private void syncUidsToSystemServer() {
+        // Only the root server manages UID lists, see onResponseFromBridgeService.
+        if (shellMode) {
+            return;
+        }
+        BridgeServiceClient.syncUids(
+                configManager.getHiddenUids(),
+                getRootUidsWithSystem(),
+                configManager.getDeniedUids(),
+                configManager.getShellUids(),
+                configManager.getDefaultPermissionFlags());
+    }
+
     private final Runnable registerTask = new Runnable() {
         @Override
         public void run() {
@@ -299,16 +356,13 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
                 public void onResponseFromBridgeService(boolean response) {
                     if (response) {
                         LOGGER.i("SUCCESS: Service binder sent to bridge.");
+                        StartupTrace.end("send_binder");
+                        StartupTrace.finish();
                         // Only the root server manages UID lists.
                         // The shell server must NOT call syncUids, or it would overwrite
                         // the root server's rootUids/shellUids with its empty config.
                         if (!shellMode) {
-                            BridgeServiceClient.syncUids(
-                                    configManager.getHiddenUids(),
-                                    getRootUidsWithSystem(),
-                                    configManager.getDeniedUids(),
-                                    configManager.getShellUids(),
-                                    configManager.getDefaultPermissionFlags());
+                            uidSyncScheduler.requestSync();
                         }
                     } else {
                         LOGGER.w("FAILURE: No response from bridge. Retrying in 1s...");
@@ -331,18 +385,23 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
         clientManager = getClientManager();
         userServiceManager = getUserServiceManager();
 
+        StartupTrace.begin("wait_packages");
+        // The lookups do not depend on each other, run them at the same time.
+        FutureTask<Integer> settingsTask = waitForPackageAsync(SETTINGS_APPLICATION_ID, true);
+        // Skip root-only setup when running as shell server
+        FutureTask<Integer> gmsTask = shellMode ? null : waitForPackageAsync("com.google.android.gms", false);
         systemUiUid = waitForPackage(MANAGER_APPLICATION_ID, true);
-        settingsUid = waitForPackage(SETTINGS_APPLICATION_ID, true);
+        settingsUid = getUid(settingsTask);
+        int gmsUid = gmsTask != null ? getUid(gmsTask) : -1;
+        StartupTrace.end("wait_packages");
 
-        // Skip root-only setup when running as shell server
-        if (!shellMode) {
-            int gmsUid = waitForPackage("com.google.android.gms", false);
-            if (gmsUid > 0) {
-                configManager.update(gmsUid, SuiConfig.MASK_PERMISSION, SuiConfig.FLAG_HIDDEN);
-            }
+        appListCache = new AppListCache(configManager, requesterIndex, systemUiUid);
+        if (gmsUid > 0) {
+            configManager.update(gmsUid, SuiConfig.MASK_PERMISSION, SuiConfig.FLAG_HIDDEN);
         }
 
-        mainHandler.postDelayed(registerTask, 2000);
+        // sendToBridge waits for the bridge itself and registerTask retries when it does not answer.
+        mainHandler.post(registerTask);
     }
 
     @Override
@@ -370,8 +429,7 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
             String func, int callingUid, int callingPid, @Nullable ClientRecord clientRecord) {
         // Temporary fix for https://github.com/RikkaApps/Sui/issues/35
         if ("transactRemote".equals(func)) {
-            SuiConfig.PackageEntry packageEntry = configManager.find(callingUid);
-            return packageEntry != null && (packageEntry.isAllowed() || packageEntry.isAllowedShell());
+            return (configManager.getFlags(callingUid) & (SuiConfig.FLAG_ALLOWED | SuiConfig.FLAG_ALLOWED_SHELL)) != 0;
         }
         return false;
     }
@@ -495,8 +553,7 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
     }
 
     private boolean shouldShowRequestPermissionRationale(ClientRecord record) {
-        SuiConfig.PackageEntry entry = configManager.find(record.uid);
-        return entry != null && entry.isDenied();
+        return (configManager.getFlags(record.uid) & SuiConfig.FLAG_DENIED) != 0;
     }
 
     @Override
@@ -576,18 +633,14 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
 
             // Push updated UID lists to system_server so BridgeService routes correctly
             if (!shellMode) {
-                BridgeServiceClient.syncUids(
-                        configManager.getHiddenUids(),
-                        getRootUidsWithSystem(),
-                        configManager.getDeniedUids(),
-                        configManager.getShellUids(),
-                        configManager.getDefaultPermissionFlags());
+                uidSyncScheduler.syncNow();
             }
 
             // Force kill the app if it requested permission and was granted Shell.
             // When an unconfigured app requests a binder, it drops into the root binder by fallback.
             // If the user grants shell, we must kill the app so its next startup acquires the true shell binder.
             if (isShell) {
+                if (!shellMode) SuiDatabase.flush();
                 for (ClientRecord record : records) {
                     if (record.packageName != null) {
                         try {
@@ -625,64 +678,84 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
         if (callingUid != uid && callingUid != systemUiUid && callingUid != settingsUid && callingUid != 1000) {
             return 0;
         }
-        SuiConfig.PackageEntry entry = configManager.find(uid);
-        if (entry != null) {
-            return entry.flags & mask;
-        }
-        return 0;
+        return configManager.getFlags(uid) & mask;
     }
 
     @Override
     public void updateFlagsForUid(int uid, int mask, int value) {
         enforceManagerPermission("updateFlagsForUid");
+        updateFlagsForUidsInternal(new int[] {uid}, new int[] {mask}, new int[] {value});
+    }
+
+    private void updateFlagsForUids(int[] uids, int[] masks, int[] values) {
+        enforceManagerPermission("updateFlagsForUids");
+        if (uids == null || masks == null || values == null) {
+            throw new IllegalArgumentException("uids, masks and values must not be null");
+        }
+        if (uids.length != masks.length || uids.length != values.length) {
+            throw new IllegalArgumentException("uids, masks and values must have the same length");
+        }
+        updateFlagsForUidsInternal(uids, masks, values);
+    }
 
-        int oldEffectiveFlags = 0;
-        SuiConfig.PackageEntry oldEffectiveEntry = configManager.find(uid);
-        if (oldEffectiveEntry != null) {
-            oldEffectiveFlags = oldEffectiveEntry.flags & SuiConfig.MASK_PERMISSION;
+    private void updateFlagsForUidsInternal(int[] uids, int[] masks, int[] values) {
+        SparseIntArray oldEffectiveFlags = new SparseIntArray(uids.length);
+        for (int uid : uids) {
+            oldEffectiveFlags.put(uid, configManager.getFlags(uid) & SuiConfig.MASK_PERMISSION);
         }
-        boolean wasHidden = (oldEffectiveFlags & SuiConfig.FLAG_HIDDEN) != 0;
 
-        configManager.update(uid, mask, value);
+        configManager.update(uids, masks, values);
 
-        if ((mask & SuiConfig.MASK_PERMISSION) != 0) {
-            int newEffectiveFlags = 0;
-            SuiConfig.PackageEntry newEffectiveEntry = configManager.find(uid);
-            if (newEffectiveEntry != null) {
-                newEffectiveFlags = newEffectiveEntry.flags & SuiConfig.MASK_PERMISSION;
+        // uids whose permission flags were touched, and among them those whose effective flags changed.
+        SparseBooleanArray touched = new SparseBooleanArray();
+        for (int i = 0; i < uids.length; i++) {
+            if ((masks[i] & SuiConfig.MASK_PERMISSION) != 0) {
+                touched.put(uids[i], false);
             }
+        }
+        if (touched.size() == 0) {
+            return;
+        }
+
+        for (int i = 0; i < touched.size(); i++) {
+            int uid = touched.keyAt(i);
+            int newEffectiveFlags = configManager.getFlags(uid) & SuiConfig.MASK_PERMISSION;
             boolean allowed = (newEffectiveFlags & (SuiConfig.FLAG_ALLOWED | SuiConfig.FLAG_ALLOWED_SHELL)) != 0;
             for (ClientRecord record : clientManager.findClients(uid)) {
                 record.allowed = allowed;
             }
+            touched.setValueAt(i, newEffectiveFlags != oldEffectiveFlags.get(uid));
+        }
 
-            if (newEffectiveFlags != oldEffectiveFlags) {
-                long id = android.os.Binder.clearCallingIdentity();
-                try {
-                    List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(uid);
-                    for (String packageName : packages) {
-                        try {
-                            LOGGER.i(
-                                    "Permission changed for %s (uid %d), force stopping to sever old binders...",
-                                    packageName, uid);
-                            ActivityManagerApis.forceStopPackageNoThrow(packageName, UserHandleCompat.getUserId(uid));
-                            getUserServiceManager().removeUserServicesForPackage(packageName);
-                        } catch (Throwable e) {
-                            LOGGER.w(e, "Failed to force stop package %s", packageName);
-                        }
+        // system_server and the database must have the new policy before the apps are stopped, or they
+        // restart and fetch a binder under the old one.
+        if (!shellMode) {
+            uidSyncScheduler.syncNow();
+            SuiDatabase.flush();
+        }
+
+        long id = android.os.Binder.clearCallingIdentity();
+        try {
+            for (int i = 0; i < touched.size(); i++) {
+                if (!touched.valueAt(i)) {
+                    continue;
+                }
+                int uid = touched.keyAt(i);
+                List<String> packages = PackageManagerApis.getPackagesForUidNoThrow(uid);
+                for (String packageName : packages) {
+                    try {
+                        LOGGER.i(
+                                "Permission changed for %s (uid %d), force stopping to sever old binders...",
+                                packageName, uid);
+                        ActivityManagerApis.forceStopPackageNoThrow(packageName, UserHandleCompat.getUserId(uid));
+                        getUserServiceManager().removeUserServicesForPackage(packageName);
+                    } catch (Throwable e) {
+                        LOGGER.w(e, "Failed to force stop package %s", packageName);
                     }
-                } finally {
-                    android.os.Binder.restoreCallingIdentity(id);
                 }
             }
-
-            // Always sync UIDs to system_server when permission flags change
-            BridgeServiceClient.syncUids(
-                    configManager.getHiddenUids(),
-                    getRootUidsWithSystem(),
-                    configManager.getDeniedUids(),
-                    configManager.getShellUids(),
-                    configManager.getDefaultPermissionFlags());
+        } finally {
+            android.os.Binder.restoreCallingIdentity(id);
         }
     }
 
@@ -699,18 +772,19 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
         String action = intent.getAction();
         int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
         boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+        Uri uri = intent.getData();
+        String packageName = (uri != null) ? uri.getSchemeSpecificPart() : null;
+        if (packageName != null) {
+            int userId = uid >= 0 ? UserHandleCompat.getUserId(uid) : -1;
+            requesterIndex.invalidatePackage(packageName, userId);
+            appListCache.invalidatePackage(packageName, userId);
+        }
+
         if (Intent.ACTION_PACKAGE_REMOVED.equals(action) && uid > 0 && !replacing) {
             LOGGER.i("uid %d is removed", uid);
             configManager.remove(uid);
-            BridgeServiceClient.syncUids(
-                    configManager.getHiddenUids(),
-                    getRootUidsWithSystem(),
-                    configManager.getDeniedUids(),
-                    configManager.getShellUids(),
-                    configManager.getDefaultPermissionFlags());
+            uidSyncScheduler.requestSync();
         } else if (Intent.ACTION_PACKAGE_FULLY_REMOVED.equals(action) && !replacing) {
-            Uri uri = intent.getData();
-            String packageName = (uri != null) ? uri.getSchemeSpecificPart() : null;
             if (packageName != null) {
                 userServiceManager.removeUserServicesForPackage(packageName);
             }
@@ -719,7 +793,23 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
 
     private ParcelableListSlice<AppInfo> getApplications(int userId, boolean onlyShizuku) {
         enforceManagerPermission("getApplications");
-        return AppListBuilder.build(configManager, systemUiUid, userId, onlyShizuku);
+        return AppListBuilder.build(configManager, requesterIndex, systemUiUid, userId, onlyShizuku);
+    }
+
+    private ParcelableListSlice<CompactAppInfo> getApplicationsCompact(int userId, boolean onlyShizuku) {
+        enforceManagerPermission("getApplicationsCompact");
+        return new ParcelableListSlice<>(
+                appListCache.getChanges(0, AppListQuery.forUser(userId, onlyShizuku)).changed);
+    }
+
+    private AppListPage getApplicationsPage(long pageGeneration, int offset, int limit, AppListQuery query) {
+        enforceManagerPermission("getApplicationsPage");
+        return appListCache.getPage(pageGeneration, offset, limit, query);
+    }
+
+    private AppListChanges getApplicationChanges(long sinceGeneration, AppListQuery query) {
+        enforceManagerPermission("getApplicationChanges");
+        return appListCache.getChanges(sinceGeneration, query);
     }
 
     private void showManagement() {
@@ -762,6 +852,26 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
         }
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        int callingUid = Binder.getCallingUid();
+        if (callingUid != 0 && callingUid != 2000 && callingUid != OsUtils.getUid()) {
+            pw.println("Permission denial: can't dump Sui server from uid " + callingUid);
+            return;
+        }
+
+        pw.printf("Sui server (isShell=%b)%n", shellMode);
+        if (!shellMode) {
+            uidSyncScheduler.dump(pw);
+            BridgeServiceClient.dumpBinderWaits(pw);
+            if (args != null && Arrays.asList(args).contains("--compare-policy-stores")) {
+                SuiDatabase.compareEngines(pw);
+            }
+        }
+        userServiceManager.dump(pw);
+        StartupTrace.dump(pw);
+    }
+
     @Override
     public boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
         // LOGGER.d("transact: code=%d, calling uid=%d", code, Binder.getCallingUid());
@@ -790,6 +900,71 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
                 reply.writeException(new RuntimeException("Sui root service crashed while trying to get app list.", e));
             }
 
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_getApplicationsCompact) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            int userId = data.readInt();
+            boolean onlyShizuku = data.readInt() != 0;
+
+            try {
+                ParcelableListSlice<CompactAppInfo> result = getApplicationsCompact(userId, onlyShizuku);
+
+                reply.writeNoException();
+                reply.writeInt(1);
+                result.writeToParcel(reply, android.os.Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+            } catch (Throwable e) {
+                if (e instanceof Error) {
+                    LOGGER.e(e, "Fatal error occurred, terminating.");
+                    throw (Error) e;
+                }
+                LOGGER.e(e, "getApplicationsCompact");
+                reply.writeException(new RuntimeException("Sui root service crashed while trying to get app list.", e));
+            }
+
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_getApplicationChanges) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            long sinceGeneration = data.readLong();
+            AppListQuery query = AppListQuery.CREATOR.createFromParcel(data);
+
+            try {
+                AppListChanges result = getApplicationChanges(sinceGeneration, query);
+
+                reply.writeNoException();
+                reply.writeInt(1);
+                result.writeToParcel(reply, android.os.Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+            } catch (Throwable e) {
+                if (e instanceof Error) {
+                    LOGGER.e(e, "Fatal error occurred, terminating.");
+                    throw (Error) e;
+                }
+                LOGGER.e(e, "getApplicationChanges");
+                reply.writeException(new RuntimeException("Sui root service crashed while trying to get app list.", e));
+            }
+
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_getApplicationsPage) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            long pageGeneration = data.readLong();
+            int offset = data.readInt();
+            int limit = data.readInt();
+            AppListQuery query = AppListQuery.CREATOR.createFromParcel(data);
+
+            try {
+                AppListPage result = getApplicationsPage(pageGeneration, offset, limit, query);
+
+                reply.writeNoException();
+                reply.writeInt(1);
+                result.writeToParcel(reply, android.os.Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+            } catch (Throwable e) {
+                if (e instanceof Error) {
+                    LOGGER.e(e, "Fatal error occurred, terminating.");
+                    throw (Error) e;
+                }
+                LOGGER.e(e, "getApplicationsPage");
+                reply.writeException(new RuntimeException("Sui root service crashed while trying to get app list.", e));
+            }
+
             return true;
         } else if (code == ServerConstants.BINDER_TRANSACTION_showManagement) {
             data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
@@ -844,12 +1019,7 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
                     reloadShellServerConfig();
                 }
                 if (!shellMode) {
-                    BridgeServiceClient.syncUids(
-                            configManager.getHiddenUids(),
-                            getRootUidsWithSystem(),
-                            configManager.getDeniedUids(),
-                            configManager.getShellUids(),
-                            configManager.getDefaultPermissionFlags());
+                    uidSyncScheduler.syncNow();
                     if (oldDefaultMode != targetMode
                             && (oldDefaultMode == SuiConfig.FLAG_ALLOWED_SHELL
                                     || targetMode == SuiConfig.FLAG_ALLOWED_SHELL)) {
@@ -863,6 +1033,17 @@ public class SuiService extends Service<SuiUserServiceManager, SuiClientManager,
             }
             return true;
         }
+        if (code == ServerConstants.BINDER_TRANSACTION_updateFlagsForUids) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            try {
+                updateFlagsForUids(data.createIntArray(), data.createIntArray(), data.createIntArray());
+                reply.writeNoException();
+            } catch (Throwable e) {
+                LOGGER.w(e, "updateFlagsForUids");
+                reply.writeException(new RuntimeException("Failed to update flags for uids", e));
+            }
+            return true;
+        }
         if (code == ServerConstants.BINDER_TRANSACTION_reloadShellConfig) {
             data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
             try {
@@ -19,8 +19,21 @@
 
 package rikka.sui.server;
 
+import static rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_TOKEN;
+import static rikka.sui.server.ServerConstants.LOGGER;
+
+import android.os.Binder;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.system.Os;
 import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import rikka.shizuku.server.UserServiceManager;
 
@@ -28,6 +41,8 @@ public class SuiUserServiceManager extends UserServiceManager {
 
     public static final String USER_SERVICE_CMD_DEBUG;
 
+    private static final String USER_SERVICE_STARTER = "rikka.sui.server.userservice.Starter";
+
     private static final String USER_SERVICE_CMD_FORMAT = "(CLASSPATH='%s' %s%s /system/bin " + "--nice-name='%s' %s "
             + "--token='%s' --package='%s' --class='%s' --uid=%d --server-uid=%d%s)&";
 
@@ -47,10 +62,102 @@ public class SuiUserServiceManager extends UserServiceManager {
 
     private static String dexPath;
 
+    /**
+     * Thrown out of getUserServiceStartCmd once the service process is already started. Upstream
+     * runs the returned command with a new sh on its executor, this ends the task before that.
+     */
+    private static final class StartedWithoutCommand extends RuntimeException {
+
+        static final StartedWithoutCommand INSTANCE = new StartedWithoutCommand();
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * Ends the executor task that would run the start command, see {@link StartedWithoutCommand}.
+     * Returns the command to use instead when the caller is not that executor.
+     */
+    private static String skipStartCmd() {
+        if (Binder.getCallingPid() != Os.getpid()) {
+            // Called synchronously on a binder thread, throwing would reach the client.
+            return "true";
+        }
+        Thread thread = Thread.currentThread();
+        Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+        if (!(handler instanceof SkipStartCmdHandler)) {
+            thread.setUncaughtExceptionHandler(new SkipStartCmdHandler(handler));
+        }
+        throw StartedWithoutCommand.INSTANCE;
+    }
+
+    /**
+     * Lets the executor thread die quietly on {@link StartedWithoutCommand}, the executor replaces it
+     * with the next task.
+     */
+    private static final class SkipStartCmdHandler implements Thread.UncaughtExceptionHandler {
+
+        private final Thread.UncaughtExceptionHandler next;
+
+        SkipStartCmdHandler(Thread.UncaughtExceptionHandler next) {
+            this.next = next;
+        }
+
+        @Override
+        public void uncaughtException(Thread thread, Throwable e) {
+            if (e != StartedWithoutCommand.INSTANCE && next != null) {
+                next.uncaughtException(thread, e);
+            }
+        }
+    }
+
+    private final UserServiceLaunchTracker launchTracker = new UserServiceLaunchTracker();
+
+    private UserServiceZygote zygote;
+    private boolean zygoteFailed;
+
     public static void setStartDex(String path) {
         SuiUserServiceManager.dexPath = path;
     }
 
+    /**
+     * The zygote is started with the first user service, which is still started the usual way.
+     */
+    private synchronized UserServiceZygote getZygote(int serverUid) {
+        if (zygote == null && !zygoteFailed && dexPath != null) {
+            UserServiceZygote created = new UserServiceZygote(dexPath, serverUid, UserServiceKeepAlive.load());
+            if (created.start()) {
+                zygote = created;
+            } else {
+                zygoteFailed = true;
+            }
+        }
+        return zygote;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        if (zygote != null) {
+            zygote.dump(pw);
+        } else {
+            pw.println("user service zygote: not started");
+        }
+        pw.printf("native spawn: %b%n", NativeSpawn.isAvailable());
+        launchTracker.dump(pw);
+    }
+
+    @Override
+    public void attachUserService(IBinder binder, Bundle options) {
+        long attachTime = SystemClock.elapsedRealtime();
+        // Upstream delivers the binder to the connections of the service here.
+        super.attachUserService(binder, options);
+        launchTracker.onAttached(
+                options != null ? options.getString(USER_SERVICE_ARG_TOKEN) : null,
+                attachTime,
+                SystemClock.elapsedRealtime());
+    }
+
     @Override
     public String getUserServiceStartCmd(
             rikka.shizuku.server.UserServiceRecord record,
@@ -67,6 +174,50 @@ public class SuiUserServiceManager extends UserServiceManager {
             appProcess = "/system/bin/app_process32";
         }
         String processName = String.format("%s:%s", packageName, processNameSuffix);
+        int serverUid = SuiService.isShellMode() ? 2000 : 0;
+        launchTracker.onRequest(token, processName);
+
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "--token=" + token,
+                "--package=" + packageName,
+                "--class=" + classname,
+                "--uid=" + callingUid,
+                "--server-uid=" + serverUid));
+        if (debug) {
+            args.add("--debug-name=" + processName);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+
+        // Debugging needs VM options and 32-bit needs another app_process, both can only be set at boot.
+        if (!debug && appProcess.equals("/system/bin/app_process")) {
+            UserServiceZygote userServiceZygote = getZygote(serverUid);
+            if (userServiceZygote != null
+                    && userServiceZygote.dispatch(packageName, processName, args.toArray(new String[0]))) {
+                launchTracker.onSpawned(
+                        token, UserServiceLaunchTracker.PATH_ZYGOTE, SystemClock.elapsedRealtime() - start);
+                return skipStartCmd();
+            }
+        }
+
+        if (NativeSpawn.isAvailable()) {
+            int pid = NativeSpawn.spawnAppProcess(
+                    appProcess,
+                    dexPath,
+                    debug ? Arrays.asList(USER_SERVICE_CMD_DEBUG.split(" ")) : Collections.emptyList(),
+                    processName,
+                    USER_SERVICE_STARTER,
+                    args,
+                    Collections.emptyMap());
+            if (pid > 0) {
+                launchTracker.onSpawned(
+                        token, UserServiceLaunchTracker.PATH_NATIVE, SystemClock.elapsedRealtime() - start);
+                return skipStartCmd();
+            }
+            LOGGER.w("spawn user service %s natively failed with %d, using sh", processName, -pid);
+        }
+
+        launchTracker.onSpawned(token, UserServiceLaunchTracker.PATH_SHELL, -1);
         return String.format(
                 Locale.ENGLISH,
                 USER_SERVICE_CMD_FORMAT,
@@ -74,12 +225,12 @@ public class SuiUserServiceManager extends UserServiceManager {
                 appProcess,
                 debug ? (" " + SuiUserServiceManager.USER_SERVICE_CMD_DEBUG) : "",
                 processName,
-                "rikka.sui.server.userservice.Starter",
+                USER_SERVICE_STARTER,
                 token,
                 packageName,
                 classname,
                 callingUid,
-                SuiService.isShellMode() ? 2000 : 0,
+                serverUid,
                 debug ? (" " + "--debug-name=" + processName) : "");
     }
 }
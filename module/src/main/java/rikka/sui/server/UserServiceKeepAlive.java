@@ -0,0 +1,169 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.server;
+
+import static rikka.sui.server.ServerConstants.LOGGER;
+
+import android.util.ArrayMap;
+import androidx.annotation.NonNull;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides how many idle user service processes are kept booted.
+ *
+ * <p>Without a config a single idle process is kept. The optional config at {@link #CONFIG_PATH}
+ * has one setting per line:
+ *
+ * <pre>
+ * max 4                  # cap of idle processes
+ * timeout 300            # default idle timeout in seconds
+ * com.example.app 900    # idle timeout of a package
+ * </pre>
+ *
+ * A package that started a user service reserves one idle process until its timeout passes, so a
+ * rebind finds a warm one. Other packages only get an idle process beyond the reserved ones, they
+ * can't take a reserved one away. When more packages are within their timeout than the cap allows,
+ * the least recently started ones lose their reservation.
+ */
+final class UserServiceKeepAlive {
+
+    static final String CONFIG_PATH = "/data/adb/sui/user_service_keep_alive";
+
+    private static final int DEFAULT_MAX_PROCESSES = 1;
+    private static final int MAX_PROCESSES_LIMIT = 8;
+
+    private final int maxProcesses;
+    private final long defaultTimeoutMs;
+    private final Map<String, Long> packageTimeoutsMs;
+
+    // Package -> elapsed realtime of its last start, least recently started first.
+    private final LinkedHashMap<String, Long> lastStarts = new LinkedHashMap<>(16, 0.75f, true);
+
+    private UserServiceKeepAlive(
+            int maxProcesses, long defaultTimeoutMs, @NonNull Map<String, Long> packageTimeoutsMs) {
+        this.maxProcesses = maxProcesses;
+        this.defaultTimeoutMs = defaultTimeoutMs;
+        this.packageTimeoutsMs = packageTimeoutsMs;
+    }
+
+    @NonNull static UserServiceKeepAlive load() {
+        int maxProcesses = DEFAULT_MAX_PROCESSES;
+        long defaultTimeoutMs = 0;
+        Map<String, Long> packageTimeoutsMs = new ArrayMap<>();
+
+        File file = new File(CONFIG_PATH);
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int comment = line.indexOf('#');
+                    if (comment >= 0) {
+                        line = line.substring(0, comment);
+                    }
+                    String[] parts = line.trim().split("\\s+");
+                    if (parts.length != 2) {
+                        continue;
+                    }
+                    try {
+                        long value = Long.parseLong(parts[1]);
+                        if (value < 0) {
+                            continue;
+                        }
+                        if (parts[0].equals("max")) {
+                            maxProcesses = (int) Math.min(value, MAX_PROCESSES_LIMIT);
+                        } else if (parts[0].equals("timeout")) {
+                            defaultTimeoutMs = value * 1000;
+                        } else {
+                            packageTimeoutsMs.put(parts[0], value * 1000);
+                        }
+                    } catch (NumberFormatException e) {
+                        LOGGER.w("invalid line in %s: %s", CONFIG_PATH, line);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.w(e, "read %s", CONFIG_PATH);
+            }
+        }
+
+        LOGGER.i(
+                "user service keep-alive: max %d, timeout %d s, %d packages",
+                maxProcesses, defaultTimeoutMs / 1000, packageTimeoutsMs.size());
+        return new UserServiceKeepAlive(maxProcesses, defaultTimeoutMs, packageTimeoutsMs);
+    }
+
+    private long getTimeoutMs(String packageName) {
+        Long timeout = packageTimeoutsMs.get(packageName);
+        return timeout != null ? timeout : defaultTimeoutMs;
+    }
+
+    synchronized void onStart(@NonNull String packageName, long now) {
+        if (getTimeoutMs(packageName) > 0) {
+            lastStarts.put(packageName, now);
+        }
+    }
+
+    /**
+     * Number of idle processes reserved by packages other than packageName, call it before
+     * {@link #onStart} for the same start.
+     */
+    synchronized int getReservedByOthers(@NonNull String packageName, long now) {
+        pruneLocked(now);
+        return lastStarts.size() - (lastStarts.containsKey(packageName) ? 1 : 0);
+    }
+
+    /**
+     * Number of idle processes to keep, at least one as long as the cap allows it.
+     */
+    synchronized int getTarget(long now) {
+        pruneLocked(now);
+        return Math.min(Math.max(lastStarts.size(), 1), maxProcesses);
+    }
+
+    private void pruneLocked(long now) {
+        Iterator<Map.Entry<String, Long>> it = lastStarts.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (now - entry.getValue() >= getTimeoutMs(entry.getKey())) {
+                it.remove();
+            }
+        }
+        while (lastStarts.size() > maxProcesses) {
+            it = lastStarts.entrySet().iterator();
+            LOGGER.i("user service keep-alive: %s evicted", it.next().getKey());
+            it.remove();
+        }
+    }
+
+    synchronized void dump(@NonNull PrintWriter pw, long now) {
+        pw.printf("  keep-alive: max=%d timeout=%ds%n", maxProcesses, defaultTimeoutMs / 1000);
+        for (Map.Entry<String, Long> entry : lastStarts.entrySet()) {
+            pw.printf(
+                    "    %s: started %ds ago, timeout %ds%n",
+                    entry.getKey(), (now - entry.getValue()) / 1000, getTimeoutMs(entry.getKey()) / 1000);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.server;
+
+import static rikka.sui.server.ServerConstants.LOGGER;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import androidx.annotation.NonNull;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Map;
+
+/**
+ * Times user service launches by token: from the start request to the process being spawned, to
+ * the service attaching to the server and to the connection callback being delivered.
+ */
+final class UserServiceLaunchTracker {
+
+    static final String PATH_ZYGOTE = "zygote";
+    static final String PATH_NATIVE = "native";
+    static final String PATH_SHELL = "sh";
+
+    private static final int MAX_PENDING = 32;
+    private static final int MAX_RECENT = 16;
+
+    private static final class Launch {
+
+        final String processName;
+        final long requestTime;
+        String path;
+        long spawnMs = -1;
+        long attachMs = -1;
+        long callbackMs = -1;
+
+        Launch(String processName, long requestTime) {
+            this.processName = processName;
+            this.requestTime = requestTime;
+        }
+
+        @NonNull @Override
+        public String toString() {
+            return processName + " via " + path + ": spawn " + spawnMs + " ms, attach " + attachMs + " ms, callback "
+                    + callbackMs + " ms";
+        }
+    }
+
+    // Guarded by this.
+    private final Map<String, Launch> pending = new ArrayMap<>();
+    private final ArrayDeque<Launch> recent = new ArrayDeque<>();
+
+    synchronized void onRequest(@NonNull String token, @NonNull String processName) {
+        if (pending.size() >= MAX_PENDING) {
+            // Services that never attached, the oldest one is dropped.
+            String oldestToken = null;
+            long oldestTime = Long.MAX_VALUE;
+            for (Map.Entry<String, Launch> entry : pending.entrySet()) {
+                if (entry.getValue().requestTime < oldestTime) {
+                    oldestTime = entry.getValue().requestTime;
+                    oldestToken = entry.getKey();
+                }
+            }
+            pending.remove(oldestToken);
+        }
+        pending.put(token, new Launch(processName, SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * @param spawnMs time the spawn took, or -1 when the process is started by upstream after we return
+     */
+    synchronized void onSpawned(@NonNull String token, @NonNull String path, long spawnMs) {
+        Launch launch = pending.get(token);
+        if (launch != null) {
+            launch.path = path;
+            launch.spawnMs = spawnMs;
+        }
+    }
+
+    synchronized void onAttached(String token, long attachTime, long callbackTime) {
+        Launch launch = token != null ? pending.remove(token) : null;
+        if (launch == null) {
+            return;
+        }
+        launch.attachMs = attachTime - launch.requestTime;
+        launch.callbackMs = callbackTime - attachTime;
+        LOGGER.i("user service %s", launch);
+
+        recent.addLast(launch);
+        if (recent.size() > MAX_RECENT) {
+            recent.removeFirst();
+        }
+    }
+
+    synchronized void dump(@NonNull PrintWriter pw) {
+        pw.printf("user service launches (%d pending):%n", pending.size());
+        for (Launch launch : recent) {
+            pw.println("  " + launch);
+        }
+    }
+}
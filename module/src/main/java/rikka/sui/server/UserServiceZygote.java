@@ -0,0 +1,365 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.server;
+
+import static rikka.sui.server.ServerConstants.LOGGER;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.system.Os;
+import androidx.annotation.NonNull;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import rikka.sui.server.userservice.Starter;
+
+/**
+ * Keeps booted, idle user service processes of this server waiting on a local socket. Starting a
+ * user service hands one of them the arguments, so only the service class is loaded instead of a
+ * whole VM being booted. How many are kept is decided by {@link UserServiceKeepAlive}, they are all
+ * dropped when the device is low on memory.
+ */
+public class UserServiceZygote {
+
+    private static final String NICE_NAME = "sui_user_service_zygote";
+    private static final String SPAWN_CMD_FORMAT = "(CLASSPATH='%s' /system/bin/app_process /system/bin "
+            + "--nice-name='%s' %s %s %s %s >/dev/null 2>&1)&";
+
+    // A process that has not connected by then is considered dead and spawned again.
+    private static final long SPAWN_TIMEOUT_MS = 10000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 1000;
+    private static final long TRIM_INTERVAL_MS = 30000;
+    // Low on memory below this share of MemTotal, in percent.
+    private static final long LOW_MEMORY_PERCENT = 10;
+
+    private final String dexPath;
+    private final int serverUid;
+    private final String socketName;
+    private final String secret;
+    private final UserServiceKeepAlive keepAlive;
+    private final Handler handler;
+    private final Runnable trimRunnable = this::trim;
+
+    private LocalServerSocket serverSocket;
+
+    // Connected idle processes, the longest idle first. Guarded by this.
+    private final ArrayDeque<LocalSocket> idle = new ArrayDeque<>();
+    private long spawnTime;
+    private boolean lowMemory;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    UserServiceZygote(@NonNull String dexPath, int serverUid, @NonNull UserServiceKeepAlive keepAlive) {
+        this.dexPath = dexPath;
+        this.serverUid = serverUid;
+        this.keepAlive = keepAlive;
+
+        SecureRandom random = new SecureRandom();
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format(Locale.ENGLISH, "%02x", b));
+        }
+        this.secret = sb.toString();
+        // Unpredictable per server instance, an app can't take the name before the server binds it.
+        this.socketName = String.format(
+                Locale.ENGLISH, "sui_user_service_zygote_%d_%08x", serverUid, random.nextInt());
+
+        HandlerThread thread = new HandlerThread("sui-user-service-zygote");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Binds the socket and spawns the first idle process, returns false if the socket can't be bound.
+     */
+    public synchronized boolean start() {
+        if (serverSocket != null) {
+            return true;
+        }
+        try {
+            serverSocket = new LocalServerSocket(socketName);
+        } catch (IOException e) {
+            LOGGER.w(e, "bind user service zygote socket %s", socketName);
+            return false;
+        }
+
+        Thread thread = new Thread(this::acceptLoop, "sui-user-service-zygote-accept");
+        thread.setDaemon(true);
+        thread.start();
+        handler.post(trimRunnable);
+        return true;
+    }
+
+    /**
+     * Hands a user service start to an idle process. Returns false if there is none or none
+     * acknowledged in time, the caller should start the service the usual way then.
+     */
+    public boolean dispatch(@NonNull String packageName, @NonNull String processName, @NonNull String[] args) {
+        long now = SystemClock.elapsedRealtime();
+        // This package may use its own reserved process and any that nobody else reserved.
+        int kept = keepAlive.getReservedByOthers(packageName, now);
+        keepAlive.onStart(packageName, now);
+        try {
+            while (true) {
+                LocalSocket socket;
+                synchronized (this) {
+                    // The most recently connected one is the least likely to have died meanwhile.
+                    socket = idle.size() > kept ? idle.pollLast() : null;
+                    if (socket == null) {
+                        misses++;
+                        return false;
+                    }
+                }
+
+                if (handOver(socket, processName, args)) {
+                    synchronized (this) {
+                        hits++;
+                    }
+                    return true;
+                }
+            }
+        } finally {
+            handler.post(trimRunnable);
+        }
+    }
+
+    private boolean handOver(LocalSocket socket, String processName, String[] args) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(processName);
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+
+            if (new DataInputStream(socket.getInputStream()).readInt() != Starter.ZYGOTE_ACK) {
+                return false;
+            }
+            LOGGER.i(
+                    "handed user service %s to zygote in %d ms", processName, SystemClock.elapsedRealtime() - start);
+            return true;
+        } catch (IOException e) {
+            LOGGER.w(e, "hand user service %s to zygote", processName);
+            return false;
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            LocalSocket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                LOGGER.e(e, "accept on user service zygote socket");
+                return;
+            }
+
+            if (!verify(socket)) {
+                closeQuietly(socket);
+                continue;
+            }
+
+            synchronized (this) {
+                idle.addLast(socket);
+                spawnTime = 0;
+            }
+            handler.post(trimRunnable);
+        }
+    }
+
+    private boolean verify(LocalSocket socket) {
+        try {
+            int uid = socket.getPeerCredentials().getUid();
+            if (uid != Os.getuid()) {
+                LOGGER.w("reject user service zygote connection from uid %d", uid);
+                return false;
+            }
+
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            String received = new DataInputStream(socket.getInputStream()).readUTF();
+            socket.setSoTimeout(0);
+            if (!MessageDigest.isEqual(
+                    received.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8))) {
+                LOGGER.w("reject user service zygote connection with wrong secret");
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.w(e, "user service zygote handshake");
+            return false;
+        }
+    }
+
+    /**
+     * Evicts idle processes above the target, the longest idle first, or spawns one below it. Runs
+     * on the handler after every change and every {@link #TRIM_INTERVAL_MS} for the timeouts.
+     */
+    private void trim() {
+        handler.removeCallbacks(trimRunnable);
+        long now = SystemClock.elapsedRealtime();
+        boolean low = isLowOnMemory();
+        int target = low ? 0 : keepAlive.getTarget(now);
+
+        List<LocalSocket> evicted = new ArrayList<>();
+        boolean spawn = false;
+        synchronized (this) {
+            if (low && !lowMemory) {
+                LOGGER.w("low on memory, dropping %d idle user service processes", idle.size());
+            }
+            lowMemory = low;
+            while (idle.size() > target) {
+                evicted.add(idle.pollFirst());
+                evictions++;
+            }
+            if (idle.size() < target && (spawnTime == 0 || now - spawnTime >= SPAWN_TIMEOUT_MS)) {
+                spawnTime = now;
+                spawn = true;
+            }
+        }
+
+        // Evicted processes see the socket closed and exit.
+        for (LocalSocket socket : evicted) {
+            closeQuietly(socket);
+        }
+        if (spawn) {
+            spawn();
+        }
+        handler.postDelayed(trimRunnable, TRIM_INTERVAL_MS);
+    }
+
+    private static boolean isLowOnMemory() {
+        long total = -1;
+        long available = -1;
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/meminfo"))) {
+            String line;
+            while ((line = reader.readLine()) != null && (total < 0 || available < 0)) {
+                if (line.startsWith("MemTotal:")) {
+                    total = parseMeminfoKb(line);
+                } else if (line.startsWith("MemAvailable:")) {
+                    available = parseMeminfoKb(line);
+                }
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return total > 0 && available >= 0 && available * 100 < total * LOW_MEMORY_PERCENT;
+    }
+
+    private static long parseMeminfoKb(String line) {
+        String[] parts = line.trim().split("\\s+");
+        try {
+            return parts.length >= 2 ? Long.parseLong(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void spawn() {
+        String mainClass = Starter.class.getName();
+        String zygoteArg = Starter.ZYGOTE_ARG + socketName;
+        String serverPidArg = Starter.ZYGOTE_SERVER_PID_ARG + Os.getpid();
+        String serverUidArg = "--server-uid=" + serverUid;
+
+        // Passed in the environment, unlike the command line it can't be read by other uids.
+        if (NativeSpawn.isAvailable()) {
+            int pid = NativeSpawn.spawnAppProcess(
+                    "/system/bin/app_process",
+                    dexPath,
+                    Collections.emptyList(),
+                    NICE_NAME,
+                    mainClass,
+                    Arrays.asList(zygoteArg, serverPidArg, serverUidArg),
+                    Collections.singletonMap(Starter.ZYGOTE_SECRET_ENV, secret));
+            if (pid > 0) {
+                return;
+            }
+            LOGGER.w("spawn user service zygote natively failed with %d, using sh", -pid);
+        }
+
+        String cmd = String.format(
+                Locale.ENGLISH,
+                SPAWN_CMD_FORMAT,
+                dexPath,
+                NICE_NAME,
+                mainClass,
+                zygoteArg,
+                serverPidArg,
+                serverUidArg);
+        List<String> env = new ArrayList<>();
+        for (Map.Entry<String, String> entry : System.getenv().entrySet()) {
+            env.add(entry.getKey() + "=" + entry.getValue());
+        }
+        env.add(Starter.ZYGOTE_SECRET_ENV + "=" + secret);
+
+        try {
+            Process process =
+                    Runtime.getRuntime().exec(new String[] {"/system/bin/sh", "-c", cmd}, env.toArray(new String[0]));
+            process.waitFor();
+        } catch (IOException e) {
+            LOGGER.w(e, "spawn user service zygote");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void dump(@NonNull PrintWriter pw) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            pw.printf(
+                    "user service zygote: idle=%d hits=%d misses=%d evictions=%d lowMemory=%b%n",
+                    idle.size(), hits, misses, evictions, lowMemory);
+        }
+        keepAlive.dump(pw, now);
+    }
+
+    private static void closeQuietly(LocalSocket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -26,9 +26,14 @@ import android.os.IBinder;
 import android.os.Parcel;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
+import android.util.SparseIntArray;
+import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.util.Map;
+import java.util.Random;
+import rikka.sui.server.SuiConfig;
 import rikka.sui.server.SuiService;
+import rikka.sui.systemserver.SystemServerConstants;
 import rikka.sui.util.BridgeConstants;
 
 public class BridgeServiceClient {
@@ -56,6 +61,7 @@ public class BridgeServiceClient {
             }
 
             LOGGER.i("service %s is dead.", BridgeConstants.SERVICE_NAME);
+            invalidateSyncedUids();
 
             try {
                 //noinspection JavaReflectionMemberAccess
@@ -88,6 +94,14 @@ public class BridgeServiceClient {
     }
 
     private static Listener listener;
+
+    private static final Object SYNC_LOCK = new Object();
+    // Start from a random version so a restarted Sui server never matches the version system_server
+    // kept from the previous instance.
+    private static long policyVersion = (((long) new Random().nextInt()) << 32) | 1L;
+    // Policy system_server is known to hold, null if unknown. Guarded by SYNC_LOCK.
+    private static SparseIntArray syncedUidFlags;
+    private static int syncedDefaultFlags;
     private static IBinder linkedBridgeService;
     private static DeathRecipient linkedDeathRecipient;
 
@@ -165,6 +179,11 @@ public class BridgeServiceClient {
             }
         }
 
+        if (res) {
+            // system_server may be a new instance, start over with a full snapshot
+            invalidateSyncedUids();
+        }
+
         if (listener != null) {
             listener.onResponseFromBridgeService(res);
         }
@@ -229,12 +248,190 @@ public class BridgeServiceClient {
         }
     }
 
+    /**
+     * Prints how often callers of the bridge in system_server waited for a missing binder.
+     */
+    public static void dumpBinderWaits(PrintWriter pw) {
+        IBinder bridgeService = ServiceManager.getService(BridgeConstants.SERVICE_NAME);
+        if (bridgeService == null) {
+            pw.println("bridge binder waits: bridge service not found");
+            return;
+        }
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(BridgeConstants.SERVICE_DESCRIPTOR);
+            data.writeInt(SystemServerConstants.ACTION_GET_BINDER_WAIT_STATS);
+            if (!bridgeService.transact(BridgeConstants.TRANSACTION_CODE, data, reply, 0)) {
+                pw.println("bridge binder waits: not supported by system_server");
+                return;
+            }
+            reply.readException();
+            pw.printf(
+                    "bridge binder waits: %d, timed out %d, rejected %d%n",
+                    reply.readLong(), reply.readLong(), reply.readLong());
+        } catch (Throwable e) {
+            pw.println("bridge binder waits: " + e);
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
+    /**
+     * Pushes the uid policy to system_server.
+     *
+     * <p>Once system_server has accepted a full snapshot, only the uids whose flags changed since the
+     * last sync are sent, on top of the policy version system_server holds. If the versions diverged
+     * (for example system_server restarted), system_server rejects the delta and a full snapshot is sent.
+     */
     public static void syncUids(int[] hiddenUids, int[] rootUids, int[] deniedUids, int[] shellUids, int defaultFlags) {
         IBinder bridgeService = ServiceManager.getService(BridgeConstants.SERVICE_NAME);
         if (bridgeService == null) {
             return;
         }
 
+        SparseIntArray uidFlags = new SparseIntArray();
+        putUidFlags(uidFlags, hiddenUids, SuiConfig.FLAG_HIDDEN);
+        putUidFlags(uidFlags, rootUids, SuiConfig.FLAG_ALLOWED);
+        putUidFlags(uidFlags, deniedUids, SuiConfig.FLAG_DENIED);
+        putUidFlags(uidFlags, shellUids, SuiConfig.FLAG_ALLOWED_SHELL);
+
+        synchronized (SYNC_LOCK) {
+            if (syncedUidFlags != null) {
+                if (defaultFlags == syncedDefaultFlags && contentEquals(syncedUidFlags, uidFlags)) {
+                    LOGGER.d("sync uids: policy unchanged at version %d", policyVersion);
+                    return;
+                }
+
+                long newVersion = policyVersion + 1;
+                if (syncUidsDelta(bridgeService, newVersion, uidFlags, defaultFlags)) {
+                    setSyncedLocked(newVersion, uidFlags, defaultFlags);
+                    return;
+                }
+                LOGGER.i("sync uids: delta rejected, sending full snapshot");
+            }
+
+            long newVersion = policyVersion + 1;
+            if (syncUidsSnapshot(
+                    bridgeService, newVersion, hiddenUids, rootUids, deniedUids, shellUids, defaultFlags)) {
+                setSyncedLocked(newVersion, uidFlags, defaultFlags);
+            } else {
+                syncedUidFlags = null;
+            }
+        }
+    }
+
+    private static void invalidateSyncedUids() {
+        synchronized (SYNC_LOCK) {
+            syncedUidFlags = null;
+        }
+    }
+
+    private static void setSyncedLocked(long version, SparseIntArray uidFlags, int defaultFlags) {
+        policyVersion = version;
+        syncedUidFlags = uidFlags;
+        syncedDefaultFlags = defaultFlags;
+    }
+
+    private static void putUidFlags(SparseIntArray uidFlags, int[] uids, int flag) {
+        if (uids == null) {
+            return;
+        }
+        for (int uid : uids) {
+            uidFlags.put(uid, uidFlags.get(uid) | flag);
+        }
+    }
+
+    private static boolean contentEquals(SparseIntArray a, SparseIntArray b) {
+        int size = a.size();
+        if (size != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (a.keyAt(i) != b.keyAt(i) || a.valueAt(i) != b.valueAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean syncUidsDelta(
+            IBinder bridgeService, long newVersion, SparseIntArray uidFlags, int defaultFlags) {
+        SparseIntArray old = syncedUidFlags;
+        int oldSize = old.size();
+        int newSize = uidFlags.size();
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(BridgeConstants.SERVICE_DESCRIPTOR);
+            data.writeInt(SystemServerConstants.ACTION_SYNC_UIDS_DELTA);
+            data.writeLong(policyVersion);
+            data.writeLong(newVersion);
+            data.writeInt(defaultFlags);
+
+            int countPosition = data.dataPosition();
+            data.writeInt(0);
+
+            // Both arrays are sorted by uid, walk them together.
+            int count = 0;
+            int i = 0, j = 0;
+            while (i < oldSize || j < newSize) {
+                int oldUid = i < oldSize ? old.keyAt(i) : Integer.MAX_VALUE;
+                int newUid = j < newSize ? uidFlags.keyAt(j) : Integer.MAX_VALUE;
+                if (j >= newSize || (i < oldSize && oldUid < newUid)) {
+                    data.writeInt(SystemServerConstants.SYNC_UIDS_OP_REMOVE);
+                    data.writeInt(oldUid);
+                    count++;
+                    i++;
+                } else if (i >= oldSize || newUid < oldUid) {
+                    data.writeInt(SystemServerConstants.SYNC_UIDS_OP_SET);
+                    data.writeInt(newUid);
+                    data.writeInt(uidFlags.valueAt(j));
+                    count++;
+                    j++;
+                } else {
+                    if (old.valueAt(i) != uidFlags.valueAt(j)) {
+                        data.writeInt(SystemServerConstants.SYNC_UIDS_OP_SET);
+                        data.writeInt(newUid);
+                        data.writeInt(uidFlags.valueAt(j));
+                        count++;
+                    }
+                    i++;
+                    j++;
+                }
+            }
+
+            int end = data.dataPosition();
+            data.setDataPosition(countPosition);
+            data.writeInt(count);
+            data.setDataPosition(end);
+
+            LOGGER.d("sync uids: delta of %d ops, version %d -> %d", count, policyVersion, newVersion);
+            if (!bridgeService.transact(BridgeConstants.TRANSACTION_CODE, data, reply, 0)) {
+                return false;
+            }
+            reply.readException();
+            return reply.readInt() != 0;
+        } catch (Throwable e) {
+            LOGGER.e(e, "sync uids delta");
+            return false;
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
+    private static boolean syncUidsSnapshot(
+            IBinder bridgeService,
+            long newVersion,
+            int[] hiddenUids,
+            int[] rootUids,
+            int[] deniedUids,
+            int[] shellUids,
+            int defaultFlags) {
         Parcel data = Parcel.obtain();
         Parcel reply = Parcel.obtain();
         try {
@@ -245,10 +442,15 @@ public class BridgeServiceClient {
             data.writeIntArray(shellUids);
             data.writeInt(defaultFlags);
             data.writeIntArray(deniedUids);
-            bridgeService.transact(BridgeConstants.TRANSACTION_CODE, data, reply, 0);
+            data.writeLong(newVersion);
+            if (!bridgeService.transact(BridgeConstants.TRANSACTION_CODE, data, reply, 0)) {
+                return false;
+            }
             reply.readException();
+            return true;
         } catch (Throwable e) {
             LOGGER.e(e, "sync uids");
+            return false;
         } finally {
             data.recycle();
             reply.recycle();
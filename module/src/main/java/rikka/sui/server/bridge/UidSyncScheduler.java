@@ -0,0 +1,156 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.server.bridge;
+
+import static rikka.sui.server.ServerConstants.LOGGER;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs uid syncs to system_server on its own thread, one at a time.
+ *
+ * <p>Requests made while a sync is pending or in flight are folded into the next sync, which reads
+ * the policy when it runs, so the latest state always wins.
+ */
+public class UidSyncScheduler {
+
+    private static final long BARRIER_TIMEOUT_MS = 5000;
+
+    private final Runnable syncAction;
+    private final Handler handler;
+    private final Object lock = new Object();
+    private final Runnable syncRunnable = this::runSync;
+
+    // Guarded by lock.
+    private long requestedGeneration;
+    private long completedGeneration;
+    private boolean scheduled;
+
+    private final AtomicLong syncsIssued = new AtomicLong();
+    private final AtomicLong syncsCoalesced = new AtomicLong();
+
+    /**
+     * @param syncAction reads the current policy and pushes it to system_server
+     */
+    public UidSyncScheduler(@NonNull Runnable syncAction) {
+        HandlerThread thread = new HandlerThread("sui-uid-sync");
+        thread.start();
+        this.syncAction = syncAction;
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Requests a sync without waiting for it.
+     *
+     * @return generation of the request, see {@link #awaitSync(long)}
+     */
+    public long requestSync() {
+        synchronized (lock) {
+            long generation = ++requestedGeneration;
+            if (scheduled) {
+                syncsCoalesced.incrementAndGet();
+            } else {
+                scheduled = true;
+                handler.post(syncRunnable);
+            }
+            return generation;
+        }
+    }
+
+    /**
+     * Requests a sync and waits until system_server has the policy as of this call.
+     */
+    public void syncNow() {
+        long generation = requestSync();
+        if (Looper.myLooper() == handler.getLooper()) {
+            runSync();
+            return;
+        }
+        awaitSync(generation);
+    }
+
+    /**
+     * Waits until the sync of generation, or a later one, has completed.
+     *
+     * @return false on timeout
+     */
+    public boolean awaitSync(long generation) {
+        long deadline = SystemClock.uptimeMillis() + BARRIER_TIMEOUT_MS;
+        synchronized (lock) {
+            while (completedGeneration < generation) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    LOGGER.w("uid sync %d timed out, completed %d", generation, completedGeneration);
+                    return false;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private void runSync() {
+        long generation;
+        synchronized (lock) {
+            // Everything requested up to now is covered by this sync.
+            scheduled = false;
+            generation = requestedGeneration;
+            if (generation <= completedGeneration) {
+                return;
+            }
+        }
+
+        long issued = syncsIssued.incrementAndGet();
+        try {
+            syncAction.run();
+        } catch (Throwable e) {
+            LOGGER.w(e, "sync uids");
+        }
+        LOGGER.d("uid sync %d done, issued %d, coalesced %d", generation, issued, syncsCoalesced.get());
+
+        synchronized (lock) {
+            if (generation > completedGeneration) {
+                completedGeneration = generation;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    public void dump(@NonNull PrintWriter pw) {
+        long completed;
+        synchronized (lock) {
+            completed = completedGeneration;
+        }
+        pw.printf(
+                "uid syncs: issued %d, coalesced %d, completed generation %d%n",
+                syncsIssued.get(), syncsCoalesced.get(), completed);
+    }
+}
@@ -21,13 +21,20 @@ package rikka.sui.server.userservice;
 
 import static rikka.shizuku.ShizukuApiConstants.USER_SERVICE_ARG_TOKEN;
 
+import android.net.Credentials;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Parcel;
 import android.os.ServiceManager;
+import android.system.Os;
 import android.util.Log;
 import android.util.Pair;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import moe.shizuku.server.IShizukuService;
 import rikka.shizuku.server.UserService;
 import rikka.sui.util.BridgeConstants;
@@ -36,6 +43,13 @@ public class Starter {
 
     private static final String TAG = "SuiUserServiceStarter";
 
+    // Starts as an idle process of rikka.sui.server.UserServiceZygote, the value is its socket name.
+    public static final String ZYGOTE_ARG = "--zygote=";
+    // Pid of the server that spawned the idle process, only it may hand over a user service.
+    public static final String ZYGOTE_SERVER_PID_ARG = "--zygote-server-pid=";
+    public static final String ZYGOTE_SECRET_ENV = "SUI_USER_SERVICE_ZYGOTE_SECRET";
+    public static final int ZYGOTE_ACK = 1;
+
     private static int parseServerUid(String[] args) {
         for (String arg : args) {
             if (arg.startsWith("--server-uid=")) {
@@ -64,6 +78,16 @@ public class Starter {
             }
         }
 
+        String zygoteSocket = parseZygoteSocket(args);
+        if (zygoteSocket != null) {
+            preload();
+            args = waitForRequest(zygoteSocket, parseZygoteServerPid(args));
+            if (args == null) {
+                System.exit(0);
+                return;
+            }
+        }
+
         IBinder service;
         String token;
         int serverUid = parseServerUid(args);
@@ -89,6 +113,105 @@ public class Starter {
         Log.i(TAG, "service exited");
     }
 
+    private static String parseZygoteSocket(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith(ZYGOTE_ARG)) {
+                return arg.substring(ZYGOTE_ARG.length());
+            }
+        }
+        return null;
+    }
+
+    private static int parseZygoteServerPid(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith(ZYGOTE_SERVER_PID_ARG)) {
+                try {
+                    return Integer.parseInt(arg.substring(ZYGOTE_SERVER_PID_ARG.length()));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Invalid " + arg, e);
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static void preload() {
+        String[] classes = {
+            "rikka.shizuku.server.UserService",
+            "moe.shizuku.server.IShizukuService$Stub",
+            "rikka.sui.util.BridgeConstants",
+            "android.os.Bundle",
+            "android.util.Pair",
+        };
+        for (String name : classes) {
+            try {
+                Class.forName(name);
+            } catch (Throwable e) {
+                Log.w(TAG, "preload " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Waits as an idle process until the server hands over a user service, returns its arguments or
+     * null if the server went away.
+     */
+    private static String[] waitForRequest(String socketName, int serverPid) {
+        if (serverPid <= 0) {
+            Log.w(TAG, ZYGOTE_SERVER_PID_ARG + " not set");
+            return null;
+        }
+        String secret = System.getenv(ZYGOTE_SECRET_ENV);
+        if (secret == null) {
+            Log.w(TAG, ZYGOTE_SECRET_ENV + " not set");
+            return null;
+        }
+        try {
+            // Not inherited by whatever the user service starts.
+            Os.unsetenv(ZYGOTE_SECRET_ENV);
+        } catch (Throwable e) {
+            Log.w(TAG, "unsetenv", e);
+        }
+
+        try (LocalSocket socket = new LocalSocket()) {
+            socket.connect(new LocalSocketAddress(socketName));
+            // Abstract names can be bound by anyone once the server is gone, the secret and the
+            // arguments are only exchanged with the server that spawned us.
+            Credentials peer = socket.getPeerCredentials();
+            if (peer.getUid() != Os.getuid() || peer.getPid() != serverPid) {
+                Log.w(TAG, "unexpected peer " + peer.getPid() + "/" + peer.getUid() + " on " + socketName);
+                return null;
+            }
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeUTF(secret);
+            out.flush();
+
+            String processName = in.readUTF();
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+            out.writeInt(ZYGOTE_ACK);
+            out.flush();
+
+            setProcessName(processName);
+            return args;
+        } catch (IOException e) {
+            // Also the normal way out, the server closes the socket when it replaces or no longer needs us.
+            return null;
+        }
+    }
+
+    private static void setProcessName(String name) {
+        try {
+            android.os.Process.class.getDeclaredMethod("setArgV0", String.class).invoke(null, name);
+        } catch (Throwable e) {
+            Log.w(TAG, "setArgV0 " + name, e);
+        }
+    }
+
     @SuppressWarnings("deprecation")
     private static void prepareMainLooper() {
         Looper.prepareMainLooper();
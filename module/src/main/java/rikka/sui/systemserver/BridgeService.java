@@ -25,16 +25,28 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.os.Parcel;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import moe.shizuku.server.IShizukuService;
 import rikka.sui.server.SuiConfig;
 import rikka.sui.util.BridgeConstants;
 
 public class BridgeService {
 
-    private static final int RETRY_MAX = 3;
-    private static final long RETRY_DELAY_MS = 1000;
+    private static final long BINDER_WAIT_TIMEOUT_MS = 3000;
+
+    // Callers that arrive while the Sui servers are not registered wait for sendBinder. Only a few
+    // of them may park a system_server binder thread at the same time, the rest get a null binder
+    // right away and retry on their side.
+    private static final int BINDER_WAITERS_MAX = 4;
+    private static final Semaphore BINDER_WAITERS = new Semaphore(BINDER_WAITERS_MAX);
+    private static final Object BINDER_LOCK = new Object();
+    private static final AtomicLong binderWaits = new AtomicLong();
+    private static final AtomicLong binderWaitTimeouts = new AtomicLong();
+    private static final AtomicLong binderWaitsRejected = new AtomicLong();
 
     private static final IBinder.DeathRecipient DEATH_RECIPIENT_ROOT = () -> {
         rootServiceBinder = null;
@@ -66,6 +78,55 @@ public class BridgeService {
         return serviceStarted;
     }
 
+    @Nullable private static IBinder selectBinder(@Nullable Integer requestedServerUid, int permissionFlags) {
+        if (requestedServerUid != null) {
+            return requestedServerUid == BridgeConstants.SERVER_UID_ROOT ? rootServiceBinder : shellServiceBinder;
+        } else if ((permissionFlags & SuiConfig.FLAG_ALLOWED) != 0) {
+            return rootServiceBinder;
+        } else if ((permissionFlags & SuiConfig.FLAG_ALLOWED_SHELL) != 0) {
+            return shellServiceBinder;
+        } else {
+            // Ask/deny still need the root service binder so the client can attach and receive
+            // normal permission request or denial results. Hidden is handled by the caller.
+            return rootServiceBinder;
+        }
+    }
+
+    @Nullable private static IBinder waitForBinder(@Nullable Integer requestedServerUid, int permissionFlags) {
+        if (!BINDER_WAITERS.tryAcquire()) {
+            long rejected = binderWaitsRejected.incrementAndGet();
+            LOGGER.w(
+                    "binder missing and %d callers are already waiting, not waiting (rejected=%d)",
+                    BINDER_WAITERS_MAX, rejected);
+            return null;
+        }
+
+        binderWaits.incrementAndGet();
+        try {
+            long deadline = SystemClock.uptimeMillis() + BINDER_WAIT_TIMEOUT_MS;
+            synchronized (BINDER_LOCK) {
+                IBinder binder;
+                while ((binder = selectBinder(requestedServerUid, permissionFlags)) == null) {
+                    long remaining = deadline - SystemClock.uptimeMillis();
+                    if (remaining <= 0) {
+                        long timeouts = binderWaitTimeouts.incrementAndGet();
+                        LOGGER.w(
+                                "binder missing after %d ms (waits=%d, timeouts=%d, rejected=%d)",
+                                BINDER_WAIT_TIMEOUT_MS, binderWaits.get(), timeouts, binderWaitsRejected.get());
+                        return null;
+                    }
+                    BINDER_LOCK.wait(remaining);
+                }
+                return binder;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return selectBinder(requestedServerUid, permissionFlags);
+        } finally {
+            BINDER_WAITERS.release();
+        }
+    }
+
     private void sendBinder(IBinder binder, boolean isRoot) {
         if (binder == null) {
             LOGGER.w("received empty binder");
@@ -105,6 +166,10 @@ public class BridgeService {
             }
             LOGGER.i("shell binder received");
         }
+
+        synchronized (BINDER_LOCK) {
+            BINDER_LOCK.notifyAll();
+        }
     }
 
     public boolean isServiceTransaction(int code) {
@@ -112,6 +177,11 @@ public class BridgeService {
     }
 
     public boolean onTransact(int code, @NonNull Parcel data, @Nullable Parcel reply, int flags) {
+        return onTransact(code, data, reply, flags, -1);
+    }
+
+    public boolean onTransact(
+            int code, @NonNull Parcel data, @Nullable Parcel reply, int flags, int callerPermissionFlags) {
         data.enforceInterface(BridgeConstants.SERVICE_DESCRIPTOR);
 
         int action = data.readInt();
@@ -148,36 +218,18 @@ public class BridgeService {
                     }
                 }
 
-                int permissionFlags = Bridge.getPermissionFlags(targetUid);
+                // Native ExecTransact has already resolved the caller against the mirrored uid policy
+                int permissionFlags = callerPermissionFlags >= 0
+                        ? callerPermissionFlags & SuiConfig.MASK_PERMISSION
+                        : Bridge.getPermissionFlags(targetUid);
 
                 if (requestedServerUid == null && (permissionFlags & SuiConfig.FLAG_HIDDEN) != 0) {
                     return false;
                 }
 
-                // Wait for the requested binder to be available
-                IBinder requestedBinder = null;
-                for (int i = 0; i < RETRY_MAX; i++) {
-                    if (requestedServerUid != null) {
-                        requestedBinder = requestedServerUid == BridgeConstants.SERVER_UID_ROOT
-                                ? rootServiceBinder
-                                : shellServiceBinder;
-                    } else if ((permissionFlags & SuiConfig.FLAG_ALLOWED) != 0) {
-                        requestedBinder = rootServiceBinder;
-                    } else if ((permissionFlags & SuiConfig.FLAG_ALLOWED_SHELL) != 0) {
-                        requestedBinder = shellServiceBinder;
-                    } else {
-                        // Ask/deny still need the root service binder so the client can attach and receive
-                        // normal permission request or denial results. Hidden is handled above.
-                        requestedBinder = rootServiceBinder;
-                    }
-
-                    if (requestedBinder != null) break;
-
-                    try {
-                        LOGGER.w("binder missing, wait %d ms (try %d/%d)", RETRY_DELAY_MS, i + 1, RETRY_MAX);
-                        Thread.sleep(RETRY_DELAY_MS);
-                    } catch (InterruptedException ignored) {
-                    }
+                IBinder requestedBinder = selectBinder(requestedServerUid, permissionFlags);
+                if (requestedBinder == null) {
+                    requestedBinder = waitForBinder(requestedServerUid, permissionFlags);
                 }
 
                 LOGGER.d(
@@ -224,9 +276,55 @@ public class BridgeService {
                     if (data.dataAvail() >= Integer.BYTES) {
                         deniedUids = data.createIntArray();
                     }
-                    SystemProcess.updateUids(hiddenUids, rootUids, deniedUids, shellUids, defaultFlags);
+
+                    long version = 0;
+                    if (data.dataAvail() >= Long.BYTES) {
+                        version = data.readLong();
+                    }
+                    SystemProcess.updateUids(hiddenUids, rootUids, deniedUids, shellUids, defaultFlags, version);
+                    if (reply != null) {
+                        reply.writeNoException();
+                    }
+                    return true;
+                }
+                break;
+            }
+            case SystemServerConstants.ACTION_SYNC_UIDS_DELTA: {
+                if (Binder.getCallingUid() == 0) {
+                    long baseVersion = data.readLong();
+                    long newVersion = data.readLong();
+                    int defaultFlags = data.readInt();
+                    int count = data.readInt();
+                    int[] uids = new int[count];
+                    int[] uidFlags = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        int op = data.readInt();
+                        uids[i] = data.readInt();
+                        if (op == SystemServerConstants.SYNC_UIDS_OP_SET) {
+                            uidFlags[i] = data.readInt();
+                        } else if (op != SystemServerConstants.SYNC_UIDS_OP_REMOVE) {
+                            throw new IllegalArgumentException("Unknown sync uids op " + op);
+                        }
+                    }
+
+                    boolean applied =
+                            SystemProcess.applyUidsDelta(baseVersion, newVersion, defaultFlags, uids, uidFlags);
+                    if (reply != null) {
+                        reply.writeNoException();
+                        reply.writeInt(applied ? 1 : 0);
+                    }
+                    return true;
+                }
+                break;
+            }
+            case SystemServerConstants.ACTION_GET_BINDER_WAIT_STATS: {
+                int callingUid = Binder.getCallingUid();
+                if (callingUid == 0 || callingUid == 2000) {
                     if (reply != null) {
                         reply.writeNoException();
+                        reply.writeLong(binderWaits.get());
+                        reply.writeLong(binderWaitTimeouts.get());
+                        reply.writeLong(binderWaitsRejected.get());
                     }
                     return true;
                 }
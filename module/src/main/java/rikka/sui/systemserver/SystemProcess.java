@@ -24,6 +24,7 @@ import static rikka.sui.systemserver.SystemServerConstants.LOGGER;
 import android.os.Binder;
 import android.os.IBinder;
 import android.os.Parcel;
+import android.util.SparseIntArray;
 import androidx.annotation.Keep;
 import androidx.annotation.NonNull;
 import java.util.Arrays;
@@ -33,18 +34,27 @@ import rikka.sui.util.ParcelUtils;
 public final class SystemProcess {
 
     private static final BridgeService SERVICE = new BridgeService();
-    private static volatile int[] hiddenUids = new int[0];
-    private static volatile int[] rootUids = new int[0];
-    private static volatile int[] deniedUids = new int[0];
-    private static volatile int[] shellUids = new int[0];
-    private static volatile int defaultPermissionFlags = 0;
+    // Published snapshot of uidPolicy, read by binder threads without locking.
+    private static volatile UidFlagMap uidFlags = UidFlagMap.EMPTY;
+
+    private static final Object POLICY_LOCK = new Object();
+    // uid -> permission flags, the source of the published uidFlags above. Guarded by POLICY_LOCK.
+    private static final SparseIntArray uidPolicy = new SparseIntArray();
+    private static long policyVersion = 0;
 
     private static boolean execActivityTransaction(
-            @NonNull Binder binder, int code, Parcel data, Parcel reply, int flags) {
-        return SERVICE.onTransact(code, data, reply, flags);
+            @NonNull Binder binder, int code, Parcel data, Parcel reply, int flags, int callerPermissionFlags) {
+        return SERVICE.onTransact(code, data, reply, flags, callerPermissionFlags);
     }
 
-    public static boolean execTransact(@NonNull Binder binder, int code, long dataObj, long replyObj, int flags) {
+    /**
+     * Called from native ExecTransact.
+     *
+     * @param callerPermissionFlags permission flags of the calling uid already resolved from the native
+     *                              uid policy table, or -1 if native could not resolve the calling uid
+     */
+    public static boolean execTransact(
+            @NonNull Binder binder, int code, long dataObj, long replyObj, int flags, int callerPermissionFlags) {
         if (!SERVICE.isServiceTransaction(code)) {
             return false;
         }
@@ -58,7 +68,7 @@ public final class SystemProcess {
 
         boolean res;
         try {
-            res = execActivityTransaction(binder, code, data, reply, flags);
+            res = execActivityTransaction(binder, code, data, reply, flags, callerPermissionFlags);
         } catch (Exception e) {
             if ((flags & IBinder.FLAG_ONEWAY) != 0) {
                 LOGGER.w(e, "Caught a Exception from the binder stub implementation.");
@@ -102,53 +112,123 @@ public final class SystemProcess {
     }
 
     public static void updateUids(int[] hidden, int[] root, int[] denied, int[] shell, int defaultFlags) {
-        if (hidden == null) hidden = new int[0];
-        if (root == null) root = new int[0];
-        if (denied == null) denied = new int[0];
-        if (shell == null) shell = new int[0];
-
-        Arrays.sort(hidden);
-        Arrays.sort(root);
-        Arrays.sort(denied);
-        Arrays.sort(shell);
-
-        hiddenUids = hidden;
-        rootUids = root;
-        deniedUids = denied;
-        shellUids = shell;
-        defaultPermissionFlags = defaultFlags & SuiConfig.MASK_PERMISSION;
+        updateUids(hidden, root, denied, shell, defaultFlags, 0);
+    }
+
+    /**
+     * Replaces the whole uid policy with a full snapshot.
+     *
+     * @param version policy version of the snapshot, deltas are only accepted on top of it. 0 means
+     *                unversioned, the next delta will be rejected and the sender falls back to a snapshot.
+     */
+    public static void updateUids(int[] hidden, int[] root, int[] denied, int[] shell, int defaultFlags, long version) {
+        synchronized (POLICY_LOCK) {
+            uidPolicy.clear();
+            addUidPolicyLocked(hidden, SuiConfig.FLAG_HIDDEN);
+            addUidPolicyLocked(root, SuiConfig.FLAG_ALLOWED);
+            addUidPolicyLocked(denied, SuiConfig.FLAG_DENIED);
+            addUidPolicyLocked(shell, SuiConfig.FLAG_ALLOWED_SHELL);
+            policyVersion = version;
+            publishUidPolicyLocked(defaultFlags);
+        }
+    }
+
+    /**
+     * Applies delta operations on top of the current policy.
+     *
+     * @param flags new flags of each uid, 0 removes the uid
+     * @return false if baseVersion does not match the current policy, the sender must send a full snapshot
+     */
+    public static boolean applyUidsDelta(
+            long baseVersion, long newVersion, int defaultFlags, @NonNull int[] uids, @NonNull int[] flags) {
+        synchronized (POLICY_LOCK) {
+            if (policyVersion == 0 || policyVersion != baseVersion) {
+                LOGGER.i(
+                        "uid policy delta %d -> %d rejected, current version %d",
+                        baseVersion, newVersion, policyVersion);
+                return false;
+            }
+            for (int i = 0; i < uids.length; i++) {
+                int value = flags[i] & SuiConfig.MASK_PERMISSION;
+                if (value == 0) {
+                    uidPolicy.delete(uids[i]);
+                } else {
+                    uidPolicy.put(uids[i], value);
+                }
+            }
+            policyVersion = newVersion;
+            publishUidPolicyLocked(defaultFlags);
+            return true;
+        }
+    }
+
+    private static void addUidPolicyLocked(int[] uids, int flag) {
+        if (uids == null) {
+            return;
+        }
+        for (int uid : uids) {
+            uidPolicy.put(uid, uidPolicy.get(uid) | flag);
+        }
+    }
+
+    private static void publishUidPolicyLocked(int defaultFlags) {
+        int size = uidPolicy.size();
+        int[] uids = new int[size];
+        int[] flags = new int[size];
+        for (int i = 0; i < size; i++) {
+            uids[i] = uidPolicy.keyAt(i);
+            flags[i] = uidPolicy.valueAt(i);
+        }
+
+        UidFlagMap map = UidFlagMap.build(uidPolicy, defaultFlags & SuiConfig.MASK_PERMISSION);
+        uidFlags = map;
 
         LOGGER.d(
-                "syncing %d hidden, %d root, %d denied, %d shell uids to native, defaultFlags=%d",
-                hidden.length, root.length, denied.length, shell.length, defaultPermissionFlags);
-        setHiddenUids(hidden);
+                "syncing %d uids to native, defaultFlags=%d, version=%d",
+                map.size(), map.getDefaultFlags(), policyVersion);
+        setUidPolicy(uids, flags, map.getDefaultFlags());
     }
 
     public static boolean isHidden(int uid) {
-        int[] uids = hiddenUids;
-        return Arrays.binarySearch(uids, uid) >= 0;
+        return (uidFlags.get(uid) & SuiConfig.FLAG_HIDDEN) != 0;
     }
 
     public static boolean isRootAllowed(int uid) {
-        int[] uids = rootUids;
-        return Arrays.binarySearch(uids, uid) >= 0;
+        return (uidFlags.get(uid) & SuiConfig.FLAG_ALLOWED) != 0;
     }
 
     public static boolean isShellAllowed(int uid) {
-        int[] uids = shellUids;
-        return Arrays.binarySearch(uids, uid) >= 0;
+        return (uidFlags.get(uid) & SuiConfig.FLAG_ALLOWED_SHELL) != 0;
     }
 
     public static boolean isDenied(int uid) {
-        int[] uids = deniedUids;
-        return Arrays.binarySearch(uids, uid) >= 0;
+        return (uidFlags.get(uid) & SuiConfig.FLAG_DENIED) != 0;
     }
 
     public static int getDefaultPermissionFlags() {
-        return defaultPermissionFlags;
+        return uidFlags.getDefaultFlags();
+    }
+
+    /**
+     * Returns the effective permission flag of uid, hidden > denied > root > shell, otherwise the
+     * default flags. Reads one published snapshot, so the result never mixes two syncs.
+     */
+    public static int getPermissionFlags(int uid) {
+        UidFlagMap map = uidFlags;
+        int flags = map.get(uid);
+        if ((flags & SuiConfig.FLAG_HIDDEN) != 0) {
+            return SuiConfig.FLAG_HIDDEN;
+        } else if ((flags & SuiConfig.FLAG_DENIED) != 0) {
+            return SuiConfig.FLAG_DENIED;
+        } else if ((flags & SuiConfig.FLAG_ALLOWED) != 0) {
+            return SuiConfig.FLAG_ALLOWED;
+        } else if ((flags & SuiConfig.FLAG_ALLOWED_SHELL) != 0) {
+            return SuiConfig.FLAG_ALLOWED_SHELL;
+        }
+        return map.getDefaultFlags();
     }
 
     @Keep
     @SuppressWarnings("JavaJniMissingFunction")
-    private static native void setHiddenUids(int[] uids);
+    private static native void setUidPolicy(int[] uids, int[] flags, int defaultFlags);
 }
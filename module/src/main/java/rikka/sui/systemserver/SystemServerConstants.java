@@ -24,4 +24,11 @@ import rikka.sui.util.Logger;
 public class SystemServerConstants {
 
     public static final Logger LOGGER = new Logger("SuiSystemServer");
+
+    // Bridge actions owned by the module, kept far away from the ones in BridgeConstants.
+    public static final int ACTION_SYNC_UIDS_DELTA = 1001;
+    public static final int ACTION_GET_BINDER_WAIT_STATS = 1002;
+
+    public static final int SYNC_UIDS_OP_SET = 1;
+    public static final int SYNC_UIDS_OP_REMOVE = 2;
 }
@@ -0,0 +1,105 @@
+/*
+ * This file is part of Sui.
+ *
+ * Sui is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Sui is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Sui.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (c) 2026 Sui Contributors
+ */
+
+package rikka.sui.systemserver;
+
+import android.util.SparseIntArray;
+import androidx.annotation.NonNull;
+
+/**
+ * Immutable open-addressing uid -> flags map, together with the flags of uids not in it.
+ *
+ * <p>Built once per sync and published as a whole, lookups never lock or allocate. Only non-zero
+ * flags are stored, so a zero value marks an empty slot.
+ */
+final class UidFlagMap {
+
+    static final UidFlagMap EMPTY = new UidFlagMap(new int[1], new int[1], 0, 0);
+
+    private final int[] keys;
+    private final int[] values;
+    private final int mask;
+    private final int size;
+    private final int defaultFlags;
+
+    private UidFlagMap(int[] keys, int[] values, int size, int defaultFlags) {
+        this.keys = keys;
+        this.values = values;
+        this.mask = keys.length - 1;
+        this.size = size;
+        this.defaultFlags = defaultFlags;
+    }
+
+    @NonNull static UidFlagMap build(@NonNull SparseIntArray source, int defaultFlags) {
+        int count = 0;
+        for (int i = 0; i < source.size(); i++) {
+            if (source.valueAt(i) != 0) count++;
+        }
+        if (count == 0) {
+            return new UidFlagMap(EMPTY.keys, EMPTY.values, 0, defaultFlags);
+        }
+
+        // Keep the load factor at most 1/2 so most lookups finish on the first slot.
+        int capacity = Integer.highestOneBit(count * 2 - 1) << 1;
+        int[] keys = new int[capacity];
+        int[] values = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < source.size(); i++) {
+            int value = source.valueAt(i);
+            if (value == 0) continue;
+
+            int uid = source.keyAt(i);
+            int index = hash(uid) & mask;
+            while (values[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = uid;
+            values[index] = value;
+        }
+        return new UidFlagMap(keys, values, count, defaultFlags);
+    }
+
+    private static int hash(int uid) {
+        // uids of different users only differ in multiples of 100000, spread them over the table.
+        int h = uid * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the flags of uid, or 0 if uid is not in the map.
+     */
+    int get(int uid) {
+        int index = hash(uid) & mask;
+        while (true) {
+            int value = values[index];
+            if (value == 0 || keys[index] == uid) {
+                return value;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getDefaultFlags() {
+        return defaultFlags;
+    }
+}
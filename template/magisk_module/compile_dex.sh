@@ -0,0 +1,127 @@
+#!/system/bin/sh
+# Compiles sui.dex ahead of time for the root and shell servers and their user services.
+#
+# ART looks for the compiled code of $MODDIR/sui.dex in $MODDIR/oat/<isa>, which links to
+# /data/adb/sui/oat/root. The shell server runs a copy of sui.dex from its own directory, its code
+# is compiled for that location into /data/adb/sui/oat/shell and copied next to it by bin/sui.
+# Compiled code is used from the next server start. Without dex2oat, or when compiling fails,
+# nothing is written and sui.dex keeps running interpreted and JIT compiled as before.
+
+MODDIR=$1
+DEX="$MODDIR/sui.dex"
+PROFILE_TXT="$MODDIR/sui.prof.txt"
+OAT_DIR="/data/adb/sui/oat"
+STAMP="$OAT_DIR/stamp"
+TAG="SuiDex2oat"
+
+log_i() {
+  log -p i -t "$TAG" "$1"
+}
+
+log_w() {
+  log -p w -t "$TAG" "$1"
+}
+
+find_tool() {
+  for dir in /apex/com.android.art/bin /apex/com.android.runtime/bin /system/bin; do
+    for name in "$1"64 "$1"; do
+      if [ -x "$dir/$name" ]; then
+        echo "$dir/$name"
+        return 0
+      fi
+    done
+  done
+  return 1
+}
+
+resolve_shell_dir() {
+  name=$(tr -d '[:space:]' < /data/adb/sui/shell_dir_name 2>/dev/null)
+  case "$name" in
+    "") ;;
+    /data/local/tmp/*) echo "$name" ;;
+    *) echo "/data/local/tmp/$name" ;;
+  esac
+}
+
+# compile <output dir> <dex location>
+compile() {
+  out=$1
+  location=$2
+  tmp="$out.tmp"
+  rm -rf "$tmp"
+  mkdir -p "$tmp/$ISA"
+
+  filters="verify"
+  if [ -n "$PROFMAN" ] && [ -f "$PROFILE_TXT" ] \
+    && "$PROFMAN" --create-profile-from="$PROFILE_TXT" --apk="$DEX" --dex-location="$location" \
+      --reference-profile-file="$tmp/sui.prof"; then
+    filters="speed-profile verify"
+  fi
+
+  for filter in $filters; do
+    profile_arg=""
+    if [ "$filter" = "speed-profile" ]; then
+      profile_arg="--profile-file=$tmp/sui.prof"
+    fi
+
+    start=$(date +%s)
+    if nice -n 10 "$DEX2OAT" --dex-file="$DEX" --dex-location="$location" \
+      --oat-file="$tmp/$ISA/sui.odex" --instruction-set="$ISA" --compiler-filter="$filter" \
+      --class-loader-context='PCL[]' $profile_arg; then
+      rm -f "$tmp/sui.prof"
+      rm -rf "$out"
+      mv "$tmp" "$out"
+      log_i "compiled $location with $filter in $(($(date +%s) - start))s"
+      return 0
+    fi
+    log_w "compiling $location with $filter failed"
+  done
+
+  rm -rf "$tmp" "$out"
+  return 1
+}
+
+case "$(getprop ro.product.cpu.abi)" in
+  arm64-v8a) ISA=arm64 ;;
+  armeabi-v7a | armeabi) ISA=arm ;;
+  x86_64) ISA=x86_64 ;;
+  x86) ISA=x86 ;;
+  *)
+    log_w "unsupported abi $(getprop ro.product.cpu.abi)"
+    exit 0
+    ;;
+esac
+
+DEX2OAT=$(find_tool dex2oat)
+if [ -z "$DEX2OAT" ]; then
+  log_w "dex2oat not found, sui.dex is not compiled"
+  exit 0
+fi
+PROFMAN=$(find_tool profman)
+
+# Compile after boot, so it does not compete with it.
+until [ "$(getprop sys.boot_completed)" = "1" ]; do
+  sleep 5
+done
+
+mkdir -p "$OAT_DIR"
+ln -sfn "$OAT_DIR/root" "$MODDIR/oat"
+
+SHELL_DIR=$(resolve_shell_dir)
+stamp="$(sha256sum "$DEX" | cut -d ' ' -f 1) $(getprop ro.build.fingerprint) $ISA $SHELL_DIR"
+if [ "$(cat "$STAMP" 2>/dev/null)" = "$stamp" ]; then
+  log_i "sui.dex is up to date"
+  exit 0
+fi
+rm -f "$STAMP"
+
+ok=true
+compile "$OAT_DIR/root" "$DEX" || ok=false
+if [ -n "$SHELL_DIR" ]; then
+  compile "$OAT_DIR/shell" "$SHELL_DIR/sui.dex" || ok=false
+fi
+
+if [ "$ok" = true ]; then
+  echo "$stamp" > "$STAMP"
+fi
+exit 0
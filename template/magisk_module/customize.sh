@@ -33,7 +33,6 @@ ui_print "- Extracting module files"
 
 extract "$ZIPFILE" 'module.prop' "$MODPATH"
 extract "$ZIPFILE" 'post-fs-data.sh' "$MODPATH"
-extract "$ZIPFILE" 'service.sh' "$MODPATH"
 extract "$ZIPFILE" 'uninstall.sh' "$MODPATH"
 extract "$ZIPFILE" 'sepolicy.rule' "$MODPATH"
 
@@ -95,6 +94,7 @@ mkdir "$MODPATH/bin"
 mkdir "$MODPATH/lib"
 extract "$ZIPFILE" "lib/$ARCH_NAME/libmain.so" "$MODPATH/bin" true
 extract "$ZIPFILE" "lib/$ARCH_NAME/librish.so" "$MODPATH" true
+extract "$ZIPFILE" "lib/$ARCH_NAME/libsui_spawn.so" "$MODPATH" true
 extract "$ZIPFILE" "lib/$ARCH_NAME/libadbd_wrapper.so" "$MODPATH/bin" true
 extract "$ZIPFILE" "lib/$ARCH_NAME/libadbd_preload.so" "$MODPATH/lib" true
 extract "$ZIPFILE" "lib/$ARCH_NAME/libsepolicy_checker.so" "$MODPATH/bin" true
@@ -113,6 +113,8 @@ fi
 set_perm_recursive "$MODPATH" 0 0 0755 0644
 
 extract "$ZIPFILE" 'sui.dex' "$MODPATH"
+extract "$ZIPFILE" 'sui.prof.txt' "$MODPATH"
+extract "$ZIPFILE" 'compile_dex.sh' "$MODPATH"
 extract "$ZIPFILE" 'sui.apk' "$MODPATH"
 
 set_perm "$MODPATH/sui.dex" 0 0 0600
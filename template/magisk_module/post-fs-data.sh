@@ -132,8 +132,14 @@ print_log() {
 }
 
 
+# Compile sui.dex in the background, it is used from the next start of the servers
+nohup sh "$MODDIR/compile_dex.sh" "$MODDIR" >/dev/null 2>&1 &
+
 print_log "Starting Sui native daemon..."
 
+# The daemon restarts the servers itself, the lock of the old service.sh watchdog is not used anymore
+rm -rf /data/adb/sui/watchdog.lock
+
 # strat the sui daemon
 nohup "$MODDIR"/bin/sui "$MODDIR" "$adb_root_exit" >> "$MODDIR/sui.log" 2>&1 &
 
@@ -574,9 +574,11 @@ class ManagementFragment : AppFragment() {
         binding.pullToRefreshIndicator.state = MiuixPullToRefreshView.RefreshState.IDLE
 
         data.data?.let {
+            // Later pages of the same load are appended without animating the list again.
+            val wasEmpty = adapter.itemCount == 0
             adapter.updateData(it)
 
-            if (it.isNotEmpty()) {
+            if (wasEmpty && it.isNotEmpty()) {
                 binding.list.scheduleLayoutAnimation()
             }
         }
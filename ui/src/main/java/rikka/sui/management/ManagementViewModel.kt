@@ -21,6 +21,7 @@ package rikka.sui.management
 import android.content.Context
 import android.content.pm.ApplicationInfo
 import android.content.pm.PackageInfo
+import android.content.pm.PackageManager
 import androidx.core.content.edit
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.ViewModel
@@ -34,30 +35,53 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import rikka.lifecycle.Resource
 import rikka.sui.model.AppInfo
+import rikka.sui.model.AppListQuery
 import rikka.sui.util.AppInfoComparator
 import rikka.sui.util.AppLabelCache
 import rikka.sui.util.BridgeServiceClient
 
 class ManagementViewModel : ViewModel() {
 
+    private companion object {
+        // Outlives the view model, reopening the screen only fetches the rows changed since.
+        val cachedRows = HashMap<String, AppInfo>()
+        var cachedGeneration = 0L
+        var cachedOnlyShizuku = false
+
+        // About one screen, so the first rows show up before the rest of the list is transferred.
+        const val FIRST_PAGE_SIZE = 30
+        const val PAGE_SIZE = 200
+
+        fun rowKey(uid: Int, packageName: String) = "$uid/$packageName"
+
+        fun rowKey(app: AppInfo) = rowKey(app.packageInfo.applicationInfo!!.uid, app.packageInfo.packageName)
+    }
+
     private val uiDebugMode = false
-    private val fullList = ArrayList<AppInfo>()
+    // Kept sorted, so a search only filters it.
+    @Volatile
+    private var fullList: List<AppInfo> = emptyList()
     var showOnlyShizukuApps = false
     var isMonetEnabled = false
     private var hasLoadedGlobalSettings = false
     val appList = MutableLiveData<Resource<List<AppInfo>>>(null)
     private var currentQuery: String? = null
+    private fun setFullList(apps: Collection<AppInfo>) {
+        fullList = apps.sortedWith(AppInfoComparator())
+    }
+
     private fun displayList() {
-        var tempSequence = fullList.asSequence()
-        if (!currentQuery.isNullOrBlank()) {
-            tempSequence = tempSequence.filter { appInfo ->
+        val query = currentQuery
+        val list = if (query.isNullOrBlank()) {
+            fullList
+        } else {
+            fullList.filter { appInfo ->
                 val appName = appInfo.label ?: ""
                 val packageName = appInfo.packageInfo.packageName
-                appName.contains(currentQuery!!, ignoreCase = true) || packageName.contains(currentQuery!!, ignoreCase = true)
+                appName.contains(query, ignoreCase = true) || packageName.contains(query, ignoreCase = true)
             }
         }
-        val sortedList = tempSequence.sortedWith(AppInfoComparator()).toList()
-        appList.postValue(Resource.success(sortedList))
+        appList.postValue(Resource.success(list))
     }
 
     fun filter(query: String?) {
@@ -139,8 +163,7 @@ class ManagementViewModel : ViewModel() {
         if (uiDebugMode) {
             viewModelScope.launch(Dispatchers.IO) {
                 val fakeData = createFakeAppList()
-                fullList.clear()
-                fullList.addAll(fakeData)
+                setFullList(fakeData)
                 displayList()
             }
             return
@@ -156,23 +179,38 @@ class ManagementViewModel : ViewModel() {
                     hasLoadedGlobalSettings = true
                 }
 
-                val result = BridgeServiceClient.getApplications(-1, showOnlyShizukuApps)
-                if (result.isNotEmpty()) {
-                    coroutineScope {
-                        result.mapNotNull { app ->
-                            if (app?.packageInfo?.applicationInfo != null) {
-                                async(Dispatchers.IO) {
-                                    app.label = AppLabelCache.loadLabel(pm, app.packageInfo.applicationInfo!!)
-                                }
-                            } else {
-                                null
-                            }
-                        }.awaitAll()
-                    }
+                val onlyShizuku = showOnlyShizukuApps
+                val query = AppListQuery.forUser(-1, onlyShizuku)
+                val since = synchronized(cachedRows) {
+                    if (cachedOnlyShizuku == onlyShizuku) cachedGeneration else 0L
+                }
+                if (since == 0L) {
+                    loadPages(pm, query)
+                    return@launch
                 }
 
-                fullList.clear()
-                fullList.addAll(result)
+                val changes = BridgeServiceClient.getApplicationChanges(since, query)
+                val changed = changes.changed.map { it.toAppInfo() }
+                loadLabels(pm, changed)
+
+                synchronized(cachedRows) {
+                    // A concurrent reload may have applied newer changes already.
+                    if (changes.reset || changes.generation >= cachedGeneration) {
+                        if (changes.reset) {
+                            cachedRows.clear()
+                        }
+                        for (i in changes.removedUids.indices) {
+                            cachedRows.remove(rowKey(changes.removedUids[i], changes.removedPackages[i]))
+                        }
+                        for (app in changed) {
+                            cachedRows[rowKey(app)] = app
+                        }
+                        cachedGeneration = changes.generation
+                        cachedOnlyShizuku = onlyShizuku
+                    }
+
+                    setFullList(cachedRows.values)
+                }
 
                 displayList()
             } catch (e: CancellationException) {
@@ -184,6 +222,53 @@ class ManagementViewModel : ViewModel() {
         }
     }
 
+    private suspend fun loadLabels(pm: PackageManager, apps: List<AppInfo>) {
+        if (apps.isEmpty()) return
+        coroutineScope {
+            apps.map { app ->
+                async(Dispatchers.IO) {
+                    app.label = AppLabelCache.loadLabel(pm, app.packageInfo.applicationInfo!!)
+                }
+            }.awaitAll()
+        }
+    }
+
+    /**
+     * Loads the whole list page by page, the first page is shown as soon as its labels are loaded.
+     */
+    private suspend fun loadPages(pm: PackageManager, query: AppListQuery) {
+        val rows = LinkedHashMap<String, AppInfo>()
+        var generation = 0L
+        var offset = 0
+        var limit = FIRST_PAGE_SIZE
+        while (true) {
+            val page = BridgeServiceClient.getApplicationsPage(generation, offset, limit, query)
+            if (page.offset != offset) {
+                // The list changed between two pages and the server started over.
+                rows.clear()
+            }
+            val apps = page.rows.map { it.toAppInfo() }
+            loadLabels(pm, apps)
+            apps.forEach { rows[rowKey(it)] = it }
+
+            setFullList(rows.values)
+            displayList()
+
+            if (!page.hasMore()) {
+                synchronized(cachedRows) {
+                    cachedRows.clear()
+                    cachedRows.putAll(rows)
+                    cachedGeneration = page.generation
+                    cachedOnlyShizuku = query.onlyShizuku
+                }
+                return
+            }
+            generation = page.generation
+            offset = page.offset + page.rows.size
+            limit = PAGE_SIZE
+        }
+    }
+
     private fun createFakeAppList(): List<AppInfo> {
         val names = listOf(
             "Ciallo", "0721", "0d00", "小潼", "xiaotong",
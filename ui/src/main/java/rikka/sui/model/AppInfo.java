@@ -29,6 +29,8 @@ public class AppInfo implements Parcelable {
     public PackageInfo packageInfo;
     public int flags;
     public int defaultFlags;
+    // CompactAppInfo.ATTR_*, only set on rows from CompactAppInfo and not parcelled.
+    public int attributes;
     public CharSequence label = null;
 
     public AppInfo() {}
@@ -21,53 +21,22 @@ package rikka.sui.util;
 
 import java.util.Comparator;
 import rikka.sui.model.AppInfo;
-import rikka.sui.server.SuiConfig;
+import rikka.sui.model.CompactAppInfo;
 
+/**
+ * The order the server pages the app list in, see {@link CompactAppInfo#getListRank}. Sorting by
+ * anything else, such as the label, would move rows that are already shown as later pages arrive.
+ */
 public class AppInfoComparator implements Comparator<AppInfo> {
 
-    private final AppNameComparator<AppInfo> appNameComparator = new AppNameComparator<>(new AppInfoProvider());
-
-    private static int getSortOrder(int flags) {
-        if ((flags & SuiConfig.FLAG_ALLOWED) != 0) {
-            return 0;
-        }
-        if ((flags & SuiConfig.FLAG_ALLOWED_SHELL) != 0) {
-            return 1;
-        }
-        if ((flags & SuiConfig.FLAG_DENIED) != 0) {
-            return 2;
-        }
-        if ((flags & SuiConfig.FLAG_HIDDEN) != 0) {
-            return 3;
-        }
-        return 4;
-    }
-
     @Override
     public int compare(AppInfo o1, AppInfo o2) {
-        int o1f = getSortOrder(o1.flags);
-        int o2f = getSortOrder(o2.flags);
-        int c = Integer.compare(o1f, o2f);
-        if (c == 0) return appNameComparator.compare(o1, o2);
-        return c;
-    }
-
-    private static class AppInfoProvider implements AppNameComparator.InfoProvider<AppInfo> {
-
-        @Override
-        public CharSequence getTitle(AppInfo item) {
-            if (item.label != null) return item.label;
-            return item.packageInfo.packageName;
-        }
-
-        @Override
-        public String getPackageName(AppInfo item) {
-            return item.packageInfo.packageName;
-        }
-
-        @Override
-        public int getUserId(AppInfo item) {
-            return UserHandleCompat.getUserId(item.packageInfo.applicationInfo.uid);
-        }
+        int c = Integer.compare(
+                CompactAppInfo.getListRank(o1.flags, o1.attributes),
+                CompactAppInfo.getListRank(o2.flags, o2.attributes));
+        if (c != 0) return c;
+        c = o1.packageInfo.packageName.compareTo(o2.packageInfo.packageName);
+        if (c != 0) return c;
+        return Integer.compare(o1.packageInfo.applicationInfo.uid, o2.packageInfo.applicationInfo.uid);
     }
 }
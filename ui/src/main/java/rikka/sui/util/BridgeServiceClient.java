@@ -24,23 +24,31 @@ import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import androidx.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import moe.shizuku.server.IShizukuService;
 import rikka.parcelablelist.ParcelableListSlice;
 import rikka.shizuku.ShizukuApiConstants;
 import rikka.sui.model.AppInfo;
+import rikka.sui.model.AppListChanges;
+import rikka.sui.model.AppListPage;
+import rikka.sui.model.AppListQuery;
+import rikka.sui.model.CompactAppInfo;
 
 public class BridgeServiceClient {
 
     public static final int FLAG_SHOW_ONLY_SHIZUKU_APPS = 1 << 0;
     public static final int FLAG_MONET_DISABLED = 1 << 1;
 
-    private static final int BINDER_TRANSACTION_getApplications = 10001;
     private static final int BINDER_TRANSACTION_REQUEST_PINNED_SHORTCUT_FROM_UI = 10005;
     private static final int BINDER_TRANSACTION_BATCH_UPDATE_UNCONFIGURED = 10006;
     private static final int BINDER_TRANSACTION_setGlobalSettings = 10007;
     private static final int BINDER_TRANSACTION_getGlobalSettings = 10008;
+    private static final int BINDER_TRANSACTION_updateFlagsForUids = 10012;
+    private static final int BINDER_TRANSACTION_getApplicationsCompact = 10013;
+    private static final int BINDER_TRANSACTION_getApplicationChanges = 10014;
+    private static final int BINDER_TRANSACTION_getApplicationsPage = 10015;
     private static final int RETRY_MAX = 5;
     private static final long RETRY_DELAY_MS = 1000;
     private static IBinder binder;
@@ -236,7 +244,7 @@ public class BridgeServiceClient {
                 data.writeInt(userId);
                 data.writeInt(onlyShizuku ? 1 : 0);
                 try {
-                    s.asBinder().transact(BINDER_TRANSACTION_getApplications, data, reply, 0);
+                    s.asBinder().transact(BINDER_TRANSACTION_getApplicationsCompact, data, reply, 0);
                 } catch (android.os.DeadObjectException e) {
                     android.util.Log.w(
                             "SuiBridgeDebug",
@@ -264,7 +272,11 @@ public class BridgeServiceClient {
                 }
                 reply.readException();
                 if ((0 != reply.readInt())) {
-                    result = ParcelableListSlice.CREATOR.createFromParcel(reply).getList();
+                    List<CompactAppInfo> compact = ParcelableListSlice.CREATOR.createFromParcel(reply).getList();
+                    result = new ArrayList<>(compact.size());
+                    for (CompactAppInfo item : compact) {
+                        result.add(item.toAppInfo());
+                    }
                 } else {
                     result = null;
                 }
@@ -278,6 +290,70 @@ public class BridgeServiceClient {
         return Collections.emptyList();
     }
 
+    /**
+     * Returns the rows of the app list matching query that changed after sinceGeneration, 0 for all
+     * of them.
+     */
+    public static AppListChanges getApplicationChanges(long sinceGeneration, AppListQuery query)
+            throws RemoteException {
+        IShizukuService s = getService();
+        if (s == null) {
+            throw new RemoteException("Sui service is not available.");
+        }
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            data.writeLong(sinceGeneration);
+            query.writeToParcel(data, 0);
+
+            s.asBinder().transact(BINDER_TRANSACTION_getApplicationChanges, data, reply, 0);
+
+            reply.readException();
+            if (reply.readInt() == 0) {
+                throw new RemoteException("Sui service returned no app list.");
+            }
+            return AppListChanges.CREATOR.createFromParcel(reply);
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
+    /**
+     * Returns limit rows of the app list starting at offset, most relevant first. Pass 0 as
+     * pageGeneration for the first page and the generation of the previous page after that.
+     */
+    public static AppListPage getApplicationsPage(long pageGeneration, int offset, int limit, AppListQuery query)
+            throws RemoteException {
+        IShizukuService s = getService();
+        if (s == null) {
+            throw new RemoteException("Sui service is not available.");
+        }
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            data.writeLong(pageGeneration);
+            data.writeInt(offset);
+            data.writeInt(limit);
+            query.writeToParcel(data, 0);
+
+            s.asBinder().transact(BINDER_TRANSACTION_getApplicationsPage, data, reply, 0);
+
+            reply.readException();
+            if (reply.readInt() == 0) {
+                throw new RemoteException("Sui service returned no app list.");
+            }
+            return AppListPage.CREATOR.createFromParcel(reply);
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
     public static void requestPinnedShortcut() throws RemoteException {
         IShizukuService s = getService();
         if (s == null) {
@@ -295,6 +371,32 @@ public class BridgeServiceClient {
         }
     }
 
+    /**
+     * Applies (masks[i], values[i]) to uids[i] for every i in one call, with a single policy sync.
+     */
+    public static void updateFlagsForUids(int[] uids, int[] masks, int[] values) throws RemoteException {
+        IShizukuService s = getService();
+        if (s == null) {
+            throw new RemoteException("Sui service is not available.");
+        }
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            data.writeIntArray(uids);
+            data.writeIntArray(masks);
+            data.writeIntArray(values);
+
+            s.asBinder().transact(BINDER_TRANSACTION_updateFlagsForUids, data, reply, 0);
+
+            reply.readException();
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
     public static void batchUpdateUnconfigured(int targetMode) throws RemoteException {
         IShizukuService s = getService();
         if (s == null) {